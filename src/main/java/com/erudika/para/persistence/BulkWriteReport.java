@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The outcome of a bulk write, for each object id. Objects are either written or failed, with an error message.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class BulkWriteReport {
+
+	private final Set<String> succeeded = ConcurrentHashMap.newKeySet();
+	private final Map<String, String> failed = new ConcurrentHashMap<String, String>();
+	private volatile Exception error;
+
+	/**
+	 * Default constructor.
+	 */
+	public BulkWriteReport() { }
+
+	/**
+	 * Returns the ids of the objects which were written.
+	 * @return a set of ids
+	 */
+	public Set<String> getSucceeded() {
+		return Collections.unmodifiableSet(succeeded);
+	}
+
+	/**
+	 * Returns the ids of the objects which failed to be written, with the reason for each.
+	 * @return a map of ids to error messages
+	 */
+	public Map<String, String> getFailed() {
+		return Collections.unmodifiableMap(failed);
+	}
+
+	/**
+	 * Returns the first error which caused writes to fail.
+	 * @return an exception or null if nothing failed
+	 */
+	public Exception getError() {
+		return error;
+	}
+
+	/**
+	 * Checks if all objects were written.
+	 * @return true if nothing failed
+	 */
+	public boolean isSuccessful() {
+		return failed.isEmpty();
+	}
+
+	void addSucceeded(String id) {
+		if (id != null) {
+			succeeded.add(id);
+		}
+	}
+
+	void addFailed(String id, String message, Exception cause) {
+		if (id != null) {
+			succeeded.remove(id);
+			failed.put(id, String.valueOf(message));
+		}
+		if (error == null && cause != null) {
+			error = cause;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "BulkWriteReport{succeeded=" + succeeded.size() + ", failed=" + failed + "}";
+	}
+}
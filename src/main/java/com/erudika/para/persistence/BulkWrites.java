@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.Para;
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.utils.Config;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits large batch operations into chunks of {@code para.mongodb.bulk.chunk_size} objects and runs
+ * up to {@code para.mongodb.bulk.parallelism} of them at the same time, on separate pooled connections.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class BulkWrites {
+
+	private static final Logger logger = LoggerFactory.getLogger(BulkWrites.class);
+
+	/**
+	 * The maximum number of objects in a chunk.
+	 */
+	static final int CHUNK_SIZE = Math.max(1, Config.getConfigInt("mongodb.bulk.chunk_size", 1000));
+
+	/**
+	 * The maximum number of chunks written at the same time.
+	 */
+	static final int PARALLELISM = Math.max(1, Config.getConfigInt("mongodb.bulk.parallelism", 4));
+
+	private BulkWrites() { }
+
+	/**
+	 * Runs a task for each chunk of a list. The calling thread takes part and the method returns
+	 * once all chunks are done. Only {@code parallelism} chunks are in progress at any time, so at most
+	 * that many chunks need to be held in memory, however long the list is. If a task throws an exception,
+	 * all objects in its chunk are reported as failed.
+	 * @param <T> the type of objects
+	 * @param items a list of objects
+	 * @param report the report where the task records the outcome for each object
+	 * @param task the task
+	 */
+	static <T extends ParaObject> void forEachChunk(List<T> items, BulkWriteReport report, Consumer<List<T>> task) {
+		if (items == null || items.isEmpty()) {
+			return;
+		}
+		final List<T> list = (items instanceof RandomAccess) ? items : new ArrayList<T>(items);
+		final int chunks = (list.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(chunks);
+		Runnable worker = () -> {
+			for (int i = next.getAndIncrement(); i < chunks; i = next.getAndIncrement()) {
+				List<T> chunk = list.subList(i * CHUNK_SIZE, Math.min(list.size(), (i + 1) * CHUNK_SIZE));
+				try {
+					task.accept(chunk);
+				} catch (Exception e) {
+					logger.error("Failed to write a chunk of " + chunk.size() + " objects.", e);
+					for (T object : chunk) {
+						if (object != null) {
+							report.addFailed(object.getId(), e.getMessage(), e);
+						}
+					}
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+		for (int w = 1; w < Math.min(PARALLELISM, chunks); w++) {
+			try {
+				Para.getExecutorService().execute(worker);
+			} catch (Exception e) {
+				break;
+			}
+		}
+		worker.run();
+		// workers which haven't started yet have nothing left to do, so only the chunks in progress are waited for
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the failed writes of a bulk write. If the error isn't about specific writes, e.g. a network
+	 * or write concern error, all writes are considered failed.
+	 * @param e the error
+	 * @param size the number of writes
+	 * @return a map of write indexes to error messages
+	 */
+	static Map<Integer, String> getFailures(Exception e, int size) {
+		Map<Integer, String> failures = new HashMap<Integer, String>();
+		if (e instanceof MongoBulkWriteException && ((MongoBulkWriteException) e).getWriteConcernError() == null) {
+			for (BulkWriteError error : ((MongoBulkWriteException) e).getWriteErrors()) {
+				failures.put(error.getIndex(), error.getMessage());
+			}
+		} else {
+			for (int i = 0; i < size; i++) {
+				failures.put(i, e.getMessage());
+			}
+		}
+		return failures;
+	}
+}
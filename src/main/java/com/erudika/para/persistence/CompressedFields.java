@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.utils.Config;
+import com.mongodb.MongoClient;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.BsonBinarySubType;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.Encoder;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.Binary;
+
+/**
+ * Stores large map fields, like {@code properties}, as compressed BSON binaries instead of embedded documents.
+ * A map is compressed if the object's type is listed in {@code para.mongodb.compressed_fields.types} or if
+ * its encoded size is at least {@code para.mongodb.compressed_fields.min_size} bytes. Compressed fields are
+ * expanded back into maps transparently on read, but they can't be queried or indexed by their inner fields.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class CompressedFields {
+
+	private static final Set<String> TYPES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			StringUtils.split(Config.getConfigParam("mongodb.compressed_fields.types", ""), ", "))));
+	private static final int MIN_SIZE = Config.getConfigInt("mongodb.compressed_fields.min_size", 0);
+	private static final int LEVEL = Config.getConfigInt("mongodb.compressed_fields.level", Deflater.DEFAULT_COMPRESSION);
+	private static final byte SUBTYPE = BsonBinarySubType.USER_DEFINED.getValue();
+	// "PZ" + format version, followed by the uncompressed length and the deflated BSON document
+	private static final byte[] MAGIC = {'P', 'Z', 1};
+	private static final int HEADER_SIZE = MAGIC.length + 4;
+
+	/**
+	 * True if any map fields are compressed.
+	 */
+	static final boolean ENABLED = !TYPES.isEmpty() || MIN_SIZE > 0;
+
+	private CompressedFields() { }
+
+	/**
+	 * Compresses a map value, if the compression policy applies to it.
+	 * @param type the type of the object which the map belongs to
+	 * @param value a map with sanitized keys
+	 * @return a compressed {@link Binary} or the map itself
+	 */
+	@SuppressWarnings("unchecked")
+	static Object compress(String type, Map<String, Object> value) {
+		if (!ENABLED || value == null || value.isEmpty()) {
+			return value;
+		}
+		boolean always = TYPES.contains(type);
+		if (!always && MIN_SIZE <= 0) {
+			return value;
+		}
+		CodecRegistry registry = MongoClient.getDefaultCodecRegistry();
+		BasicOutputBuffer buffer = new BasicOutputBuffer();
+		try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+			Encoder<Map<String, Object>> encoder = (Encoder<Map<String, Object>>) registry.get(value.getClass());
+			encoder.encode(writer, value, EncoderContext.builder().build());
+		}
+		if (!always && buffer.getSize() < MIN_SIZE) {
+			// already encoded, so it won't be encoded again
+			return new RawBsonDocument(buffer.getInternalBuffer(), 0, buffer.getSize());
+		}
+		return new Binary(SUBTYPE, deflate(buffer.getInternalBuffer(), buffer.getSize()));
+	}
+
+	/**
+	 * Checks if a value is a compressed map.
+	 * @param value a value
+	 * @return true if the value was produced by {@link #compress(java.lang.String, java.util.Map)}
+	 */
+	static boolean isCompressed(Object value) {
+		if (!(value instanceof Binary) || ((Binary) value).getType() != SUBTYPE) {
+			return false;
+		}
+		byte[] data = ((Binary) value).getData();
+		return data.length >= HEADER_SIZE && data[0] == MAGIC[0] && data[1] == MAGIC[1] && data[2] == MAGIC[2];
+	}
+
+	/**
+	 * Expands a compressed map. Keys are desanitized.
+	 * @param value a compressed value
+	 * @param registry the codec registry used for field values
+	 * @return a map, which is decoded lazily if {@code para.mongodb.lazy_reads} is enabled
+	 */
+	static Map<String, Object> expand(Binary value, CodecRegistry registry) {
+		RawBsonDocument raw = new RawBsonDocument(inflate(value.getData()));
+		if (LazyBsonMap.ENABLED) {
+			return new LazyBsonMap(raw, registry, false);
+		}
+		Document doc = new DocumentCodec(registry).decode(raw.asBsonReader(), DecoderContext.builder().build());
+		return MongoDBDAO.desanitizeFields(doc);
+	}
+
+	private static byte[] deflate(byte[] bytes, int length) {
+		Deflater deflater = new Deflater(LEVEL);
+		try {
+			deflater.setInput(bytes, 0, length);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + length / 2);
+			out.write(MAGIC, 0, MAGIC.length);
+			out.write(ByteBuffer.allocate(4).putInt(length).array(), 0, 4);
+			byte[] chunk = new byte[8192];
+			while (!deflater.finished()) {
+				out.write(chunk, 0, deflater.deflate(chunk));
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] data) {
+		Inflater inflater = new Inflater();
+		try {
+			byte[] bytes = new byte[ByteBuffer.wrap(data, MAGIC.length, 4).getInt()];
+			inflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+			int length = 0;
+			while (length < bytes.length && !inflater.finished()) {
+				int n = inflater.inflate(bytes, length, bytes.length - length);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				length += n;
+			}
+			if (length != bytes.length) {
+				throw new IllegalStateException("Compressed field is truncated or corrupt.");
+			}
+			return bytes;
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Compressed field is corrupt.", e);
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Spreads apps over all clusters using a consistent hash ring. Adding a cluster only moves
+ * the apps which land on that cluster's part of the ring.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class ConsistentHashRoutingStrategy implements MongoDBRoutingStrategy {
+
+	private static final int VIRTUAL_NODES = 128;
+
+	private volatile Ring ring;
+
+	@Override
+	public String route(String appid, List<String> clusters) {
+		if (clusters == null || clusters.isEmpty()) {
+			return null;
+		}
+		SortedMap<Long, String> r = getRing(clusters);
+		SortedMap<Long, String> tail = r.tailMap(hash(appid));
+		return tail.isEmpty() ? r.get(r.firstKey()) : tail.get(tail.firstKey());
+	}
+
+	private SortedMap<Long, String> getRing(List<String> clusters) {
+		Ring r = ring;
+		if (r != null && clusters.equals(r.clusters)) {
+			return r.nodes;
+		}
+		// the ring and the clusters it was built from are swapped together, so concurrent callers never see a mix
+		r = new Ring(new ArrayList<String>(clusters));
+		ring = r;
+		return r.nodes;
+	}
+
+	private static long hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(String.valueOf(key).getBytes(UTF_8));
+			long h = 0;
+			for (int i = 0; i < 8; i++) {
+				h = (h << 8) | (digest[i] & 0xFF);
+			}
+			return h;
+		} catch (NoSuchAlgorithmException e) {
+			return String.valueOf(key).hashCode();
+		}
+	}
+
+	/**
+	 * A hash ring together with the clusters it was built from.
+	 */
+	private static final class Ring {
+		private final List<String> clusters;
+		private final SortedMap<Long, String> nodes = new TreeMap<Long, String>();
+
+		Ring(List<String> clusters) {
+			this.clusters = clusters;
+			for (String cluster : clusters) {
+				for (int i = 0; i < VIRTUAL_NODES; i++) {
+					nodes.put(hash(cluster + "#" + i), cluster);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.annotations.Locked;
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.utils.Config;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bson.ByteBuf;
+import org.bson.Document;
+
+/**
+ * Dirty field tracking for updates. A fingerprint of each field is taken when an object is read or created,
+ * and on update only the fields which changed since then are sent with {@code $set}, while fields which
+ * became null are removed with {@code $unset}. Objects which weren't read through the DAO are updated in full.
+ * Snapshots are held by object identity and weakly, so they go away with the objects.
+ * Enabled with {@code para.mongodb.delta_updates = true}, unless objects are spilled over to GridFS.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class DeltaUpdates {
+
+	/**
+	 * True if only the changed fields of objects are updated.
+	 */
+	static final boolean ENABLED = Config.getConfigBoolean("mongodb.delta_updates", false) && !SpillOver.ENABLED;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+	private static final Map<IdentityKey, Map<String, Long>> SNAPSHOTS = new ConcurrentHashMap<IdentityKey, Map<String, Long>>();
+
+	private DeltaUpdates() { }
+
+	/**
+	 * Takes a snapshot of an object, as it is in the database.
+	 * @param so an object which was just read or written
+	 */
+	static void track(ParaObject so) {
+		if (ENABLED && so != null) {
+			expungeStaleEntries();
+			SNAPSHOTS.put(new IdentityKey(so, QUEUE), getFingerprints(so));
+		}
+	}
+
+	/**
+	 * Takes snapshots of objects, as they are in the database.
+	 * @param objects objects which were just read or written
+	 */
+	static void trackAll(Collection<? extends ParaObject> objects) {
+		if (ENABLED && objects != null) {
+			for (ParaObject so : objects) {
+				track(so);
+			}
+		}
+	}
+
+	/**
+	 * Forgets the snapshot of an object, e.g. when an update fails. The next update will be a full one.
+	 * @param so an object
+	 */
+	static void untrack(ParaObject so) {
+		if (ENABLED && so != null) {
+			SNAPSHOTS.remove(new IdentityKey(so, null));
+		}
+	}
+
+	/**
+	 * Removes the fields which haven't changed since the last snapshot from a row, and takes a new snapshot.
+	 * @param so the object being updated
+	 * @param row the row for {@code $set}, modified in place
+	 * @return the stored names of the fields which became null, or null if the object has no snapshot
+	 * and has to be updated in full
+	 */
+	static Set<String> diff(ParaObject so, Document row) {
+		if (!ENABLED || so == null || row == null) {
+			return null;
+		}
+		Map<String, Long> after = getFingerprints(so);
+		Map<String, Long> before = SNAPSHOTS.put(new IdentityKey(so, QUEUE), after);
+		if (before == null) {
+			return null;
+		}
+		for (Entry<String, Long> field : after.entrySet()) {
+			if (field.getValue().equals(before.get(field.getKey()))) {
+				row.remove(FieldAliases.toStored(field.getKey()));
+			}
+		}
+		Set<String> removed = new LinkedHashSet<String>();
+		for (String field : before.keySet()) {
+			if (!after.containsKey(field)) {
+				removed.add(FieldAliases.toStored(field));
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Adds the fields which became null to the {@code $unset} part of an update.
+	 * @param update an update
+	 * @param removed field names returned by {@link #diff(com.erudika.para.core.ParaObject, org.bson.Document)}
+	 * @return the update
+	 */
+	static Document addUnset(Document update, Set<String> removed) {
+		if (removed == null || removed.isEmpty()) {
+			return update;
+		}
+		Document unset = (Document) update.get("$unset");
+		if (unset == null) {
+			unset = new Document();
+			update.put("$unset", unset);
+		}
+		for (String field : removed) {
+			unset.put(field, "");
+		}
+		return update;
+	}
+
+	private static Map<String, Long> getFingerprints(ParaObject so) {
+		Map<String, Object> fields = ParaObjectAccessors.getAnnotatedFields(so, Locked.class);
+		Map<String, Long> fingerprints = new HashMap<String, Long>(fields.size() * 2);
+		for (Entry<String, Object> field : fields.entrySet()) {
+			if (field.getValue() != null && !Config._ID.equals(field.getKey())) {
+				fingerprints.put(field.getKey(), fingerprint(field.getValue()));
+			}
+		}
+		return Collections.unmodifiableMap(fingerprints);
+	}
+
+	/**
+	 * A 64-bit structural hash of a value. Map entries are combined regardless of their order
+	 * and numbers of different types have different fingerprints. A lazy map which hasn't been decoded
+	 * is hashed by its bytes instead. If it's decoded later, its fingerprint changes and the field is written
+	 * on the next update, even if it wasn't modified.
+	 * @param value a value
+	 * @return a fingerprint
+	 */
+	static long fingerprint(Object value) {
+		if (value == null) {
+			return 0;
+		} else if (value instanceof CharSequence) {
+			CharSequence s = (CharSequence) value;
+			long h = FNV_OFFSET;
+			for (int i = 0; i < s.length(); i++) {
+				h = (h ^ s.charAt(i)) * FNV_PRIME;
+			}
+			return mix(h);
+		} else if (value instanceof Map) {
+			ByteBuf bytes = (value instanceof LazyBsonMap) ? ((LazyBsonMap) value).getRawBytes() : null;
+			if (bytes != null) {
+				// maps read lazily are fingerprinted from their bytes, so that tracking doesn't decode them
+				return fingerprint(bytes);
+			}
+			long h = 0;
+			for (Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				h += mix(fingerprint(entry.getKey()) * 31 + fingerprint(entry.getValue()));
+			}
+			return mix(h ^ 0x4d4150L);
+		} else if (value instanceof Collection) {
+			long h = FNV_OFFSET;
+			for (Object item : (Collection<?>) value) {
+				h = (h ^ fingerprint(item)) * FNV_PRIME;
+			}
+			return mix(h ^ 0x4c4953L);
+		} else if (value instanceof Double || value instanceof Float) {
+			return mix(Double.doubleToLongBits(((Number) value).doubleValue()) * 31 + value.getClass().getName().hashCode());
+		} else if (value instanceof Number) {
+			return mix(((Number) value).longValue() * 31 + value.getClass().getName().hashCode());
+		} else if (value instanceof Object[]) {
+			return mix(fingerprint(Arrays.asList((Object[]) value)));
+		}
+		return mix(((long) value.getClass().getName().hashCode() << 32) ^ value.hashCode());
+	}
+
+	private static long fingerprint(ByteBuf bytes) {
+		long h = FNV_OFFSET;
+		for (int i = 0; i < bytes.limit(); i++) {
+			h = (h ^ bytes.get(i)) * FNV_PRIME;
+		}
+		return mix(h ^ 0x42534fL);
+	}
+
+	private static long mix(long h) {
+		// the finalizer of MurmurHash3
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static void expungeStaleEntries() {
+		for (Reference<?> ref = QUEUE.poll(); ref != null; ref = QUEUE.poll()) {
+			SNAPSHOTS.remove((IdentityKey) ref);
+		}
+	}
+
+	/**
+	 * A weak reference which is equal to another one only if both refer to the same object.
+	 */
+	private static final class IdentityKey extends WeakReference<Object> {
+		private final int hash;
+
+		IdentityKey(Object referent, ReferenceQueue<Object> queue) {
+			super(referent, queue);
+			this.hash = System.identityHashCode(referent);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof IdentityKey)) {
+				return false;
+			}
+			Object referent = get();
+			return referent != null && referent == ((IdentityKey) obj).get();
+		}
+	}
+}
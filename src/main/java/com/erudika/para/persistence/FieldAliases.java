@@ -0,0 +1,356 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.utils.Config;
+import com.erudika.para.utils.Utils;
+import static com.erudika.para.persistence.MongoDBDAO.ID;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A dictionary of short aliases for top-level field names, e.g. {@code timestamp} is stored as {@code @t}.
+ * Aliases always start with '@', so they can't be confused with real field names, and names without
+ * an alias are still sanitized as usual. The dictionary is persisted in the {@code para.mongodb.field_aliases.collection}
+ * collection, next to the data - each cluster has a copy in its own database, which also holds the aliases found in
+ * the other clusters, so the documents of a cluster can be read with that cluster alone. All apps share the same aliases.
+ * It is append-only - aliases are added with {@code para.mongodb.field_aliases.custom} and each change creates a new
+ * version, but an alias is never removed or reassigned, so documents written with any version of the dictionary
+ * can always be read.
+ * Enabled with {@code para.mongodb.field_aliases.enabled = true}.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class FieldAliases {
+
+	private static final Logger logger = LoggerFactory.getLogger(FieldAliases.class);
+
+	/**
+	 * True if top-level field names are stored as short aliases.
+	 */
+	static final boolean ENABLED = Config.getConfigBoolean("mongodb.field_aliases.enabled", false);
+
+	private static final String COLLECTION = Config.getConfigParam("mongodb.field_aliases.collection", "para_metadata");
+	private static final String DICTIONARY_ID = "field_aliases";
+	private static final String VERSION = "version";
+	private static final String ALIASES = "aliases";
+	private static final String PREFIX = "@";
+	private static final int MAX_ATTEMPTS = 5;
+	private static final long RELOAD_INTERVAL_MS = 10000;
+
+	private static volatile Dictionary dictionary;
+	private static volatile long lastLoaded;
+
+	private FieldAliases() { }
+
+	/**
+	 * Returns the name under which a top-level field is stored.
+	 * @param field a field name
+	 * @return an alias or the sanitized field name
+	 */
+	static String toStored(String field) {
+		if (ENABLED && field != null) {
+			String alias = getDictionary().aliases.get(field);
+			if (alias != null) {
+				return alias;
+			}
+		}
+		return MongoDBDAO.sanitizeField(field);
+	}
+
+	/**
+	 * Returns the name under which a field or a path to a nested field is stored, e.g. "properties.title".
+	 * Only the top-level field name is replaced.
+	 * @param path a field name or a dot-separated path
+	 * @return the stored path
+	 */
+	static String toStoredPath(String path) {
+		if (!ENABLED) {
+			return path;
+		} else if (!StringUtils.contains(path, ".")) {
+			return toStored(path);
+		}
+		return toStored(StringUtils.substringBefore(path, ".")) + "." + StringUtils.substringAfter(path, ".");
+	}
+
+	/**
+	 * Returns the field name for a stored top-level field name.
+	 * @param name a stored name
+	 * @return the field name
+	 */
+	static String fromStored(String name) {
+		if (ENABLED && isAlias(name)) {
+			String field = getDictionary().fields.get(name);
+			if (field == null) {
+				// the alias may have been added by another node since the dictionary was loaded
+				field = reload().fields.get(name);
+			}
+			if (field != null) {
+				return field;
+			}
+		}
+		return MongoDBDAO.desanitizeField(name);
+	}
+
+	/**
+	 * Checks if a stored top-level field should be ignored on read. Documents written before aliases were enabled
+	 * may have both the full name and the alias of a field, in which case the alias holds the current value.
+	 * If the full name comes first, its value is simply overwritten.
+	 * @param fields the fields read so far
+	 * @param name the stored name
+	 * @param field the field name
+	 * @return true if the value under the alias was already read
+	 */
+	static boolean isShadowed(Map<String, Object> fields, String name, String field) {
+		return ENABLED && !isAlias(name) && fields.containsKey(field);
+	}
+
+	private static boolean isAlias(String name) {
+		return name != null && name.startsWith(PREFIX);
+	}
+
+	/**
+	 * Loads the dictionary, so that the first read or write doesn't have to. Errors are logged and ignored.
+	 */
+	static void init() {
+		if (ENABLED) {
+			try {
+				getDictionary();
+			} catch (Exception e) {
+				logger.error("Failed to load the field alias dictionary.", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the current aliases.
+	 * @return a map of field names to aliases, empty if aliases are disabled
+	 */
+	static Map<String, String> getAliases() {
+		return ENABLED ? getDictionary().aliases : Collections.<String, String>emptyMap();
+	}
+
+	private static Dictionary getDictionary() {
+		Dictionary d = dictionary;
+		if (d == null) {
+			synchronized (FieldAliases.class) {
+				d = dictionary;
+				if (d == null) {
+					d = load();
+				}
+			}
+		} else if (!d.complete && System.currentTimeMillis() - lastLoaded >= RELOAD_INTERVAL_MS) {
+			// some clusters couldn't be reached last time, so their copy of the dictionary may be out of date
+			try {
+				d = reload();
+			} catch (Exception e) {
+				logger.error("Failed to reload the field alias dictionary.", e);
+			}
+		}
+		return d;
+	}
+
+	private static synchronized Dictionary reload() {
+		if (dictionary == null || System.currentTimeMillis() - lastLoaded >= RELOAD_INTERVAL_MS) {
+			return load();
+		}
+		return dictionary;
+	}
+
+	private static synchronized Dictionary load() {
+		load(MongoDBUtils.getCollectionInAllClusters(COLLECTION));
+		return dictionary;
+	}
+
+	/**
+	 * Loads the dictionary from the collections of all clusters and adds any aliases which are missing from
+	 * each of them - the configured ones and the ones found in the other clusters. Clusters which can't be reached
+	 * are skipped and retried later, unless none of them can be reached.
+	 * @param tables the collections which hold the dictionary, starting with the one of the default cluster
+	 * @return a map of field names to aliases
+	 */
+	static synchronized Map<String, String> load(List<MongoCollection<Document>> tables) {
+		Map<String, String> aliases = new LinkedHashMap<String, String>();
+		List<MongoCollection<Document>> reachable = new ArrayList<MongoCollection<Document>>(tables.size());
+		MongoException error = null;
+		for (MongoCollection<Document> table : tables) {
+			try {
+				merge(aliases, read(table.find(Filters.eq(ID, DICTIONARY_ID)).first()), table.getNamespace());
+				reachable.add(table);
+			} catch (MongoException e) {
+				logger.error("Failed to read the field alias dictionary in '{}'.", table.getNamespace(), e);
+				error = e;
+			}
+		}
+		if (reachable.isEmpty() && error != null) {
+			throw error;
+		}
+		merge(aliases, getConfiguredAliases(), "the configuration");
+		// another node may have changed a dictionary since it was read - what's stored in the first cluster wins
+		Map<String, String> synced = null;
+		for (MongoCollection<Document> table : reachable) {
+			Map<String, String> stored = sync(table, aliases);
+			if (synced == null) {
+				synced = stored;
+			} else {
+				merge(synced, stored, table.getNamespace());
+			}
+		}
+		dictionary = new Dictionary(synced, reachable.size() == tables.size());
+		lastLoaded = System.currentTimeMillis();
+		return dictionary.aliases;
+	}
+
+	/**
+	 * Adds the missing aliases to the dictionary in a collection. Changes made by other nodes in the meantime
+	 * are detected by the version of the dictionary and merged.
+	 * @param table the collection which holds the dictionary
+	 * @param added the aliases to add
+	 * @return the stored aliases
+	 */
+	private static Map<String, String> sync(MongoCollection<Document> table, Map<String, String> added) {
+		for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+			Document stored = table.find(Filters.eq(ID, DICTIONARY_ID)).first();
+			int version = (stored == null) ? 0 : stored.getInteger(VERSION, 0);
+			Map<String, String> aliases = read(stored);
+			if (merge(aliases, added, null)) {
+				Document updated = new Document(ID, DICTIONARY_ID).append(VERSION, version + 1).
+						append(ALIASES, new Document(new LinkedHashMap<String, Object>(aliases))).append(Config._UPDATED, Utils.timestamp());
+				if (!save(table, stored == null, version, updated)) {
+					// the dictionary was changed by another node in the meantime
+					continue;
+				}
+				logger.info("Field alias dictionary in '{}' updated to version {} - {} aliases.",
+						table.getNamespace(), version + 1, aliases.size());
+			}
+			return aliases;
+		}
+		throw new IllegalStateException("Failed to update the field alias dictionary in '" + table.getNamespace() +
+				"' after " + MAX_ATTEMPTS + " attempts.");
+	}
+
+	private static Map<String, String> read(Document stored) {
+		Map<String, String> aliases = new LinkedHashMap<String, String>();
+		if (stored != null && stored.get(ALIASES) instanceof Document) {
+			for (Entry<String, Object> entry : ((Document) stored.get(ALIASES)).entrySet()) {
+				aliases.put(entry.getKey(), String.valueOf(entry.getValue()));
+			}
+		}
+		return aliases;
+	}
+
+	private static boolean save(MongoCollection<Document> table, boolean insert, int version, Document doc) {
+		try {
+			if (insert) {
+				table.insertOne(doc);
+				return true;
+			}
+			return table.replaceOne(Filters.and(Filters.eq(ID, DICTIONARY_ID), Filters.eq(VERSION, version)),
+					doc).getMatchedCount() > 0;
+		} catch (MongoWriteException e) {
+			if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	private static boolean merge(Map<String, String> aliases, Map<String, String> added, Object source) {
+		boolean changed = false;
+		for (Entry<String, String> entry : added.entrySet()) {
+			String field = entry.getKey();
+			String alias = entry.getValue();
+			if (aliases.containsKey(field)) {
+				if (!aliases.get(field).equals(alias) && source != null) {
+					logger.warn("Field '{}' already has the alias '{}' - ignoring '{}' from {}, aliases can't be changed.",
+							field, aliases.get(field), alias, source);
+				}
+			} else if (aliases.containsValue(alias)) {
+				if (source != null) {
+					logger.warn("Alias '{}' for field '{}' from {} is already used by another field.", alias, field, source);
+				}
+			} else {
+				aliases.put(field, alias);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private static Map<String, String> getConfiguredAliases() {
+		Map<String, String> aliases = new LinkedHashMap<String, String>();
+		aliases.put(Config._TIMESTAMP, "@t");
+		aliases.put(Config._UPDATED, "@u");
+		aliases.put(Config._TYPE, "@ty");
+		aliases.put(Config._APPID, "@a");
+		aliases.put(Config._PARENTID, "@p");
+		aliases.put(Config._CREATORID, "@c");
+		aliases.put(Config._NAME, "@n");
+		aliases.put(Config._TAGS, "@tg");
+		aliases.put("votes", "@vo");
+		aliases.put(Config._VERSION, "@ve");
+		aliases.put("stored", "@s");
+		aliases.put("indexed", "@i");
+		aliases.put("cached", "@ca");
+		aliases.put("properties", "@pr");
+		// custom aliases - "field1:alias1,field2:alias2", the '@' is added to each alias
+		for (String pair : StringUtils.split(Config.getConfigParam("mongodb.field_aliases.custom", ""), ", ")) {
+			String field = StringUtils.trimToEmpty(StringUtils.substringBefore(pair, ":"));
+			String alias = StringUtils.trimToEmpty(StringUtils.removeStart(StringUtils.substringAfter(pair, ":"), PREFIX));
+			if (field.isEmpty() || alias.isEmpty() || StringUtils.containsAny(field + alias, ".$") || isAlias(field)) {
+				logger.warn("Invalid field alias '{}' in para.mongodb.field_aliases.custom.", pair);
+			} else {
+				aliases.put(field, PREFIX + alias);
+			}
+		}
+		return aliases;
+	}
+
+	/**
+	 * The aliases of one version of the dictionary, in both directions.
+	 */
+	private static final class Dictionary {
+		private final Map<String, String> aliases;
+		private final Map<String, String> fields;
+		// false if the dictionary couldn't be read from all clusters
+		private final boolean complete;
+
+		Dictionary(Map<String, String> aliases, boolean complete) {
+			this.complete = complete;
+			this.aliases = Collections.unmodifiableMap(new HashMap<String, String>(aliases));
+			Map<String, String> reverse = new HashMap<String, String>(aliases.size());
+			for (Entry<String, String> entry : aliases.entrySet()) {
+				reverse.put(entry.getValue(), entry.getKey());
+			}
+			this.fields = Collections.unmodifiableMap(reverse);
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The default metrics sink - keeps counters and latency histograms in memory and exposes them as
+ * one {@link MongoDBMetricsMXBean} per cluster, named {@code com.erudika.para:type=MongoDBMetrics,cluster={name}}.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public class JmxMetricsSink implements MongoDBMetricsSink {
+
+	private static final Logger logger = LoggerFactory.getLogger(JmxMetricsSink.class);
+
+	private final Map<String, ClusterMetrics> clusters = new ConcurrentHashMap<String, ClusterMetrics>();
+
+	@Override
+	public void commandCompleted(String cluster, String command, String collection, long elapsedNanos, boolean success) {
+		ClusterMetrics metrics = getMetrics(cluster);
+		metrics.getCommand(command).record(elapsedNanos, success);
+		if (collection != null) {
+			metrics.getCommand(command + ":" + collection).record(elapsedNanos, success);
+		}
+	}
+
+	@Override
+	public void connectionCheckedOut(String cluster, long waitNanos) {
+		ClusterMetrics metrics = getMetrics(cluster);
+		metrics.checkedOut.incrementAndGet();
+		if (waitNanos >= 0) {
+			metrics.poolWait.record(waitNanos);
+		}
+	}
+
+	@Override
+	public void connectionCheckedIn(String cluster) {
+		getMetrics(cluster).checkedOut.decrementAndGet();
+	}
+
+	@Override
+	public void connectionAdded(String cluster) {
+		getMetrics(cluster).added.increment();
+	}
+
+	@Override
+	public void connectionRemoved(String cluster) {
+		getMetrics(cluster).removed.increment();
+	}
+
+	/**
+	 * Returns the metrics for a cluster.
+	 * @param cluster the name of the cluster
+	 * @return the metrics MXBean for that cluster
+	 */
+	public MongoDBMetricsMXBean getClusterMetrics(String cluster) {
+		return getMetrics(cluster);
+	}
+
+	private ClusterMetrics getMetrics(String cluster) {
+		ClusterMetrics metrics = clusters.get(cluster);
+		if (metrics == null) {
+			metrics = new ClusterMetrics();
+			ClusterMetrics existing = clusters.putIfAbsent(cluster, metrics);
+			if (existing != null) {
+				return existing;
+			}
+			register(cluster, metrics);
+		}
+		return metrics;
+	}
+
+	private static void register(String cluster, ClusterMetrics metrics) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("com.erudika.para:type=MongoDBMetrics,cluster=" + ObjectName.quote(cluster));
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(metrics, name);
+		} catch (Exception e) {
+			logger.warn("Failed to register MongoDB metrics MXBean for cluster '{}': {}", cluster, e.getMessage());
+		}
+	}
+
+	/**
+	 * All metrics for a single cluster.
+	 */
+	static final class ClusterMetrics implements MongoDBMetricsMXBean {
+
+		private final Map<String, CommandMetrics> commands = new ConcurrentHashMap<String, CommandMetrics>();
+		private final AtomicLong checkedOut = new AtomicLong();
+		private final LongAdder added = new LongAdder();
+		private final LongAdder removed = new LongAdder();
+		private final Histogram poolWait = new Histogram();
+
+		CommandMetrics getCommand(String key) {
+			CommandMetrics metrics = commands.get(key);
+			if (metrics == null) {
+				metrics = commands.computeIfAbsent(key, k -> new CommandMetrics());
+			}
+			return metrics;
+		}
+
+		@Override
+		public Map<String, Long> getCommandCounts() {
+			Map<String, Long> map = new TreeMap<String, Long>();
+			commands.forEach((k, v) -> map.put(k, v.latency.getCount()));
+			return map;
+		}
+
+		@Override
+		public Map<String, Long> getCommandErrors() {
+			Map<String, Long> map = new TreeMap<String, Long>();
+			commands.forEach((k, v) -> map.put(k, v.errors.sum()));
+			return map;
+		}
+
+		@Override
+		public Map<String, Double> getCommandLatencyMean() {
+			Map<String, Double> map = new TreeMap<String, Double>();
+			commands.forEach((k, v) -> map.put(k, v.latency.getMeanMillis()));
+			return map;
+		}
+
+		@Override
+		public Map<String, Double> getCommandLatencyP50() {
+			Map<String, Double> map = new TreeMap<String, Double>();
+			commands.forEach((k, v) -> map.put(k, v.latency.getPercentileMillis(0.5)));
+			return map;
+		}
+
+		@Override
+		public Map<String, Double> getCommandLatencyP99() {
+			Map<String, Double> map = new TreeMap<String, Double>();
+			commands.forEach((k, v) -> map.put(k, v.latency.getPercentileMillis(0.99)));
+			return map;
+		}
+
+		@Override
+		public long getCheckedOutConnections() {
+			return checkedOut.get();
+		}
+
+		@Override
+		public long getOpenConnections() {
+			return added.sum() - removed.sum();
+		}
+
+		@Override
+		public long getConnectionsAdded() {
+			return added.sum();
+		}
+
+		@Override
+		public long getConnectionsRemoved() {
+			return removed.sum();
+		}
+
+		@Override
+		public double getPoolWaitMean() {
+			return poolWait.getMeanMillis();
+		}
+
+		@Override
+		public double getPoolWaitP99() {
+			return poolWait.getPercentileMillis(0.99);
+		}
+
+		@Override
+		public void reset() {
+			commands.clear();
+			poolWait.reset();
+		}
+	}
+
+	/**
+	 * Latency and error counts for a single command or command/collection pair.
+	 */
+	static final class CommandMetrics {
+		private final Histogram latency = new Histogram();
+		private final LongAdder errors = new LongAdder();
+
+		void record(long elapsedNanos, boolean success) {
+			latency.record(elapsedNanos);
+			if (!success) {
+				errors.increment();
+			}
+		}
+	}
+
+	/**
+	 * A lock-free latency histogram with exponential buckets - bucket {@code i} holds values
+	 * below {@code 2^i} microseconds, so percentiles are accurate to within a factor of two.
+	 */
+	static final class Histogram {
+		private static final int BUCKETS = 40;
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sumNanos = new LongAdder();
+
+		void record(long nanos) {
+			long micros = Math.max(0, nanos / 1000);
+			int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+			buckets.incrementAndGet(bucket);
+			count.increment();
+			sumNanos.add(nanos);
+		}
+
+		long getCount() {
+			return count.sum();
+		}
+
+		double getMeanMillis() {
+			long n = count.sum();
+			return (n == 0) ? 0 : sumNanos.sum() / (double) n / 1000000.0;
+		}
+
+		double getPercentileMillis(double percentile) {
+			long n = count.sum();
+			if (n == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(percentile * n);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return (1L << i) / 1000.0;
+				}
+			}
+			return (1L << (BUCKETS - 1)) / 1000.0;
+		}
+
+		void reset() {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets.set(i, 0);
+			}
+			count.reset();
+			sumNanos.reset();
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.utils.Config;
+import static com.erudika.para.persistence.MongoDBDAO.ID;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.ByteBuf;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.BsonTypeCodecMap;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.RawBsonDocumentCodec;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.Binary;
+
+/**
+ * A map backed by the raw bytes of a BSON document, which is only decoded when it is first accessed.
+ * Embedded documents become lazy maps themselves, so large nested objects like {@code properties}
+ * are never decoded unless they are actually used. Field names are desanitized on decoding,
+ * like in {@code MongoDBDAO.documentToMap()}, and the map is mutable once decoded.
+ * Enabled with {@code para.mongodb.lazy_reads = true}.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class LazyBsonMap extends AbstractMap<String, Object> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * True if documents are read as {@link RawBsonDocument} and decoded lazily.
+	 */
+	static final boolean ENABLED = Config.getConfigBoolean("mongodb.lazy_reads", false);
+
+	private static final RawBsonDocumentCodec RAW_CODEC = new RawBsonDocumentCodec();
+	private static final DecoderContext CONTEXT = DecoderContext.builder().build();
+
+	private transient RawBsonDocument raw;
+	private transient CodecRegistry registry;
+	private final boolean topLevel;
+	private volatile Map<String, Object> decoded;
+
+	/**
+	 * Default constructor.
+	 * @param raw a raw BSON document
+	 * @param registry the codec registry used for field values
+	 * @param topLevel true if this is a whole document, where "_id" is translated to "id"
+	 */
+	LazyBsonMap(RawBsonDocument raw, CodecRegistry registry, boolean topLevel) {
+		this.raw = raw;
+		this.registry = registry;
+		this.topLevel = topLevel;
+	}
+
+	/**
+	 * Reads an embedded document from the current position of a reader, without decoding it.
+	 * @param reader a reader positioned at an embedded document
+	 * @param registry the codec registry used for field values
+	 * @return a lazy map
+	 */
+	static LazyBsonMap read(BsonReader reader, CodecRegistry registry) {
+		return new LazyBsonMap(RAW_CODEC.decode(reader, CONTEXT), registry, false);
+	}
+
+	/**
+	 * Returns the raw bytes of the map, unless it has been decoded - a decoded map may have been changed.
+	 * @return a buffer or null
+	 */
+	ByteBuf getRawBytes() {
+		synchronized (this) {
+			return (decoded == null && raw != null) ? raw.getByteBuffer() : null;
+		}
+	}
+
+	private Map<String, Object> getDecoded() {
+		Map<String, Object> map = decoded;
+		if (map == null) {
+			synchronized (this) {
+				map = decoded;
+				if (map == null) {
+					map = decode();
+					decoded = map;
+					raw = null;
+				}
+			}
+		}
+		return map;
+	}
+
+	private Map<String, Object> decode() {
+		BsonTypeCodecMap codecs = new BsonTypeCodecMap(new BsonTypeClassMap(), registry);
+		Map<String, Object> map = new HashMap<String, Object>();
+		try (BsonReader reader = raw.asBsonReader()) {
+			reader.readStartDocument();
+			while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+				String name = reader.readName();
+				// "_ID" mongodb is translated to "id" in ParaObject
+				String field = topLevel ? (name.equals(ID) ? Config._ID : FieldAliases.fromStored(name)) : MongoDBDAO.desanitizeField(name);
+				if (topLevel && FieldAliases.isShadowed(map, name, field)) {
+					reader.skipValue();
+					continue;
+				}
+				BsonType type = reader.getCurrentBsonType();
+				Object value;
+				if (type == BsonType.DOCUMENT) {
+					value = read(reader, registry);
+				} else if (type == BsonType.NULL) {
+					reader.readNull();
+					value = null;
+				} else {
+					value = codecs.get(type).decode(reader, CONTEXT);
+					if (CompressedFields.isCompressed(value)) {
+						value = CompressedFields.expand((Binary) value, registry);
+					}
+				}
+				map.put(field, topLevel ? TypedFields.fromStored(field, value) : value);
+			}
+			reader.readEndDocument();
+		}
+		return map;
+	}
+
+	@Override
+	public Set<Entry<String, Object>> entrySet() {
+		return getDecoded().entrySet();
+	}
+
+	@Override
+	public Object get(Object key) {
+		return getDecoded().get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return getDecoded().containsKey(key);
+	}
+
+	@Override
+	public int size() {
+		return getDecoded().size();
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		return getDecoded().put(key, value);
+	}
+
+	@Override
+	public Object remove(Object key) {
+		return getDecoded().remove(key);
+	}
+
+	@Override
+	public void clear() {
+		getDecoded().clear();
+	}
+
+	private Object writeReplace() {
+		return new HashMap<String, Object>(getDecoded());
+	}
+}
@@ -0,0 +1,507 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.annotations.Locked;
+import com.erudika.para.core.ParaObject;
+import static com.erudika.para.persistence.MongoDBDAO.ID;
+import static com.erudika.para.persistence.MongoDBDAO.OBJECT_ID;
+import static com.erudika.para.persistence.MongoDBDAO.PROJECTED_FIELDS;
+import static com.erudika.para.persistence.MongoDBDAO.documentToMap;
+import static com.erudika.para.persistence.MongoDBDAO.fromRow;
+import static com.erudika.para.persistence.MongoDBDAO.getProjection;
+import static com.erudika.para.persistence.MongoDBDAO.prepareForCreate;
+import static com.erudika.para.persistence.MongoDBDAO.throwIfNecessary;
+import static com.erudika.para.persistence.MongoDBDAO.toRow;
+import static com.erudika.para.persistence.MongoDBUtils.getAsyncTable;
+import com.erudika.para.persistence.MongoDBUtils.Operation;
+import com.erudika.para.utils.Config;
+import com.erudika.para.utils.Pager;
+import com.erudika.para.utils.Utils;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+import com.mongodb.reactivestreams.client.FindPublisher;
+import com.mongodb.reactivestreams.client.Success;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import javax.inject.Singleton;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.Document;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous MongoDB DAO implementation for Para, based on the Reactive Streams driver.
+ * All {@code *Async} methods return immediately, without blocking the calling thread for the server round trip.
+ * The {@link DAO} methods are blocking and simply wait for the result of the corresponding asynchronous method.
+ * Objects are mapped to and from documents exactly like in {@link MongoDBDAO}, and new objects are
+ * written with the {@link ParaObjectCodec} if it is enabled. Objects are always updated in full, and
+ * it can't be used together with spill-over to GridFS or the write-behind queue.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+@Singleton
+public class MongoDBAsyncDAO implements DAO {
+
+	private static final Logger logger = LoggerFactory.getLogger(MongoDBAsyncDAO.class);
+
+	/**
+	 * Default constructor.
+	 */
+	public MongoDBAsyncDAO() {
+		if (SpillOver.ENABLED || WriteBehindQueue.ENABLED) {
+			// neither is implemented by the async write paths, which would otherwise leave stale spilled fields behind
+			// or bypass the queue
+			throw new IllegalStateException("MongoDBAsyncDAO doesn't support para.mongodb.spillover.min_size " +
+					"or para.mongodb.write_behind.enabled - use MongoDBDAO instead.");
+		}
+		MongoDBUtils.initDAO();
+	}
+
+	/////////////////////////////////////////////
+	//			ASYNC FUNCTIONS
+	/////////////////////////////////////////////
+
+	/**
+	 * Persists an object to the data store asynchronously.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param so the domain object
+	 * @return a future which completes with the object's id
+	 */
+	public <P extends ParaObject> CompletableFuture<String> createAsync(String appid, P so) {
+		if (so == null || StringUtils.isBlank(appid)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		prepareForCreate(appid, so);
+		DeltaUpdates.untrack(so);
+		final String id = so.getId();
+		// if there isn't a document with the same id then create a new document
+		// else replace the document with the same id with the new one
+		Publisher<UpdateResult> result = ParaObjectCodec.ENABLED ?
+				getAsyncTable(appid, Operation.WRITE).withDocumentClass(ParaObject.class).replaceOne(new Document(ID, id),
+						so, new ReplaceOptions().upsert(true)) :
+				getAsyncTable(appid, Operation.WRITE).replaceOne(new Document(ID, id),
+						toRow(so, null, false, true), new ReplaceOptions().upsert(true));
+		return onWrite(collect(result)).thenApply(r -> {
+			logger.debug("DAO.createAsync() {}", id);
+			return id;
+		});
+	}
+
+	/**
+	 * Retrieves an object from the data store asynchronously.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param key an object id
+	 * @return a future which completes with the object or null if not found
+	 */
+	public <P extends ParaObject> CompletableFuture<P> readAsync(String appid, String key) {
+		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return onRead(collect(getAsyncTable(appid, Operation.READ).find(new Document(ID, key)).first()),
+				Collections.<Document>emptyList()).
+				thenApply(rows -> {
+					P so = rows.isEmpty() ? null : fromRow(rows.get(0));
+					logger.debug("DAO.readAsync() {} -> {}", key, so == null ? null : so.getType());
+					return so;
+				});
+	}
+
+	/**
+	 * Updates an object in the data store asynchronously.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param so the domain object
+	 * @return a future which completes when the object is updated
+	 */
+	public <P extends ParaObject> CompletableFuture<Void> updateAsync(String appid, P so) {
+		if (so == null || so.getId() == null || StringUtils.isBlank(appid)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		so.setUpdated(Utils.timestamp());
+		// a snapshot taken by MongoDBDAO won't match the stored object after this write
+		DeltaUpdates.untrack(so);
+		Document row = toRow(so, Locked.class, true);
+		if (row.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return onWrite(collect(getAsyncTable(appid, Operation.WRITE).
+				updateOne(new Document(ID, so.getId()), new Document("$set", row)))).thenAccept(r -> {
+					logger.debug("DAO.updateAsync() {}", so.getId());
+				});
+	}
+
+	/**
+	 * Deletes an object from the data store asynchronously.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param so the domain object
+	 * @return a future which completes when the object is deleted
+	 */
+	public <P extends ParaObject> CompletableFuture<Void> deleteAsync(String appid, P so) {
+		if (so == null || so.getId() == null || StringUtils.isBlank(appid)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		DeltaUpdates.untrack(so);
+		return onWrite(collect(getAsyncTable(appid, Operation.WRITE).deleteOne(new Document(ID, so.getId())))).
+				thenAccept(r -> {
+					logger.debug("DAO.deleteAsync() {}", so.getId());
+				});
+	}
+
+	/**
+	 * Saves multiple objects to the data store asynchronously.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param objects the list of objects to save
+	 * @return a future which completes when all objects are saved
+	 */
+	public <P extends ParaObject> CompletableFuture<Void> createAllAsync(String appid, List<P> objects) {
+		if (objects == null || objects.isEmpty() || StringUtils.isBlank(appid)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		List<ParaObject> list = new ArrayList<ParaObject>(objects.size());
+		for (ParaObject so : objects) {
+			if (so != null) {
+				prepareForCreate(appid, so);
+				DeltaUpdates.untrack(so);
+				list.add(so);
+			}
+		}
+		if (list.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		Publisher<Success> result;
+		if (ParaObjectCodec.ENABLED) {
+			result = getAsyncTable(appid, Operation.WRITE_IMPORT).withDocumentClass(ParaObject.class).insertMany(list);
+		} else {
+			List<Document> documents = new ArrayList<Document>(list.size());
+			for (ParaObject so : list) {
+				documents.add(toRow(so, null, false, true));
+			}
+			result = getAsyncTable(appid, Operation.WRITE_IMPORT).insertMany(documents);
+		}
+		return onWrite(collect(result)).thenAccept(r -> {
+			logger.debug("DAO.createAllAsync() {}", list.size());
+		});
+	}
+
+	/**
+	 * Retrieves multiple objects from the data store asynchronously.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param keys a list of object ids
+	 * @param getAllColumns true if all columns must be retrieved, otherwise only the core fields and
+	 * the ones in {@code para.mongodb.readall_projection} are read
+	 * @return a future which completes with a map of ids to objects
+	 */
+	public <P extends ParaObject> CompletableFuture<Map<String, P>> readAllAsync(String appid, List<String> keys,
+			boolean getAllColumns) {
+		return readAllAsync(appid, keys, getAllColumns ? null : PROJECTED_FIELDS);
+	}
+
+	/**
+	 * Retrieves multiple objects from the data store asynchronously, with only the given fields filled in.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param keys a list of object ids
+	 * @param fields the names of the fields to read, or dot-separated paths to nested fields.
+	 * All fields are read if this is null or empty.
+	 * @return a future which completes with a map of ids to objects
+	 */
+	public <P extends ParaObject> CompletableFuture<Map<String, P>> readAllAsync(String appid, List<String> keys,
+			Set<String> fields) {
+		if (keys == null || keys.isEmpty() || StringUtils.isBlank(appid)) {
+			return CompletableFuture.completedFuture(new LinkedHashMap<String, P>());
+		}
+		return onRead(collect(getAsyncTable(appid, Operation.READ_BATCH).find(Filters.in(ID, keys)).
+				projection(getProjection(fields))),
+				Collections.<Document>emptyList()).thenApply(rows -> {
+					Map<String, P> results = new LinkedHashMap<String, P>(keys.size(), 0.75f, true);
+					for (Document row : rows) {
+						P obj = fromRow(row);
+						if (obj != null) {
+							results.put(row.getString(ID), obj);
+						}
+					}
+					logger.debug("DAO.readAllAsync() {}", results.size());
+					return results;
+				});
+	}
+
+	/**
+	 * Reads a page of objects from the data store asynchronously.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param pager a {@link com.erudika.para.utils.Pager}, updated when the page is read
+	 * @return a future which completes with a list of objects
+	 */
+	public <P extends ParaObject> CompletableFuture<List<P>> readPageAsync(String appid, Pager pager) {
+		if (StringUtils.isBlank(appid)) {
+			return CompletableFuture.completedFuture(new LinkedList<P>());
+		}
+		final Pager p = (pager == null) ? new Pager() : pager;
+		String lastKey = p.getLastKey();
+		FindPublisher<Document> find = (lastKey == null) ? getAsyncTable(appid, Operation.READ_PAGE).find() :
+				getAsyncTable(appid, Operation.READ_PAGE).find(Filters.gt(OBJECT_ID, lastKey));
+		return onRead(collect(find.batchSize(p.getLimit()).limit(p.getLimit())), Collections.<Document>emptyList()).
+				thenApply(rows -> {
+					LinkedList<P> results = new LinkedList<P>();
+					for (Document doc : rows) {
+						Map<String, Object> row = documentToMap(doc);
+						P obj = fromRow(row);
+						if (obj != null) {
+							results.add(obj);
+							p.setLastKey((String) row.get(OBJECT_ID));
+						}
+					}
+					if (!results.isEmpty()) {
+						p.setCount(p.getCount() + results.size());
+					}
+					logger.debug("readPageAsync() page: {}, results: {}", p.getPage(), results.size());
+					return results;
+				});
+	}
+
+	/**
+	 * Updates multiple objects in the data store asynchronously.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param objects the list of objects to update
+	 * @return a future which completes when all objects are updated
+	 */
+	public <P extends ParaObject> CompletableFuture<Void> updateAllAsync(String appid, List<P> objects) {
+		if (objects == null || objects.isEmpty() || StringUtils.isBlank(appid)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		List<WriteModel<Document>> updates = new ArrayList<WriteModel<Document>>(objects.size());
+		for (P object : objects) {
+			if (object != null) {
+				object.setUpdated(Utils.timestamp());
+				DeltaUpdates.untrack(object);
+				updates.add(new UpdateOneModel<Document>(new Document(ID, object.getId()),
+						new Document("$set", toRow(object, Locked.class, true))));
+			}
+		}
+		if (updates.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return onWrite(collect(getAsyncTable(appid, Operation.WRITE_BULK).
+				bulkWrite(updates, new BulkWriteOptions().ordered(true)))).thenAccept(r -> {
+					logger.debug("DAO.updateAllAsync() {}", updates.size());
+				});
+	}
+
+	/**
+	 * Deletes multiple objects from the data store asynchronously.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param objects the list of objects to delete
+	 * @return a future which completes when all objects are deleted
+	 */
+	public <P extends ParaObject> CompletableFuture<Void> deleteAllAsync(String appid, List<P> objects) {
+		if (objects == null || objects.isEmpty() || StringUtils.isBlank(appid)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		List<String> ids = new ArrayList<String>(objects.size());
+		for (ParaObject object : objects) {
+			if (object != null) {
+				DeltaUpdates.untrack(object);
+				ids.add(object.getId());
+			}
+		}
+		return onWrite(collect(getAsyncTable(appid, Operation.WRITE_BULK).deleteMany(Filters.in(ID, ids)))).
+				thenAccept(r -> {
+					logger.debug("DAO.deleteAllAsync() {}", ids.size());
+				});
+	}
+
+	/////////////////////////////////////////////
+	//			REACTIVE STREAMS HELPERS
+	/////////////////////////////////////////////
+
+	/**
+	 * Subscribes to a publisher and collects all of its items.
+	 * @param <T> item type
+	 * @param publisher a publisher
+	 * @return a future which completes with all items, when the publisher completes
+	 */
+	static <T> CompletableFuture<List<T>> collect(Publisher<T> publisher) {
+		final CompletableFuture<List<T>> future = new CompletableFuture<List<T>>();
+		publisher.subscribe(new Subscriber<T>() {
+			private final List<T> items = new ArrayList<T>();
+
+			public void onSubscribe(Subscription s) {
+				s.request(Long.MAX_VALUE);
+			}
+
+			public void onNext(T item) {
+				items.add(item);
+			}
+
+			public void onError(Throwable t) {
+				future.completeExceptionally(t);
+			}
+
+			public void onComplete() {
+				future.complete(items);
+			}
+		});
+		return future;
+	}
+
+	private static <T> CompletableFuture<T> onRead(CompletableFuture<T> future, T defaultValue) {
+		return future.exceptionally(e -> {
+			logger.error(null, e);
+			return defaultValue;
+		});
+	}
+
+	private static <T> CompletableFuture<T> onWrite(CompletableFuture<T> future) {
+		return future.handle((result, e) -> {
+			if (e != null) {
+				logger.error(null, e);
+				throwIfNecessary(e instanceof CompletionException ? e.getCause() : e);
+			}
+			return result;
+		});
+	}
+
+	private static <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/////////////////////////////////////////////
+	//			BLOCKING FUNCTIONS
+	/////////////////////////////////////////////
+
+	@Override
+	public <P extends ParaObject> String create(String appid, P so) {
+		return await(createAsync(appid, so));
+	}
+
+	@Override
+	public <P extends ParaObject> P read(String appid, String key) {
+		return await(this.<P>readAsync(appid, key));
+	}
+
+	@Override
+	public <P extends ParaObject> void update(String appid, P so) {
+		await(updateAsync(appid, so));
+	}
+
+	@Override
+	public <P extends ParaObject> void delete(String appid, P so) {
+		await(deleteAsync(appid, so));
+	}
+
+	@Override
+	public <P extends ParaObject> void createAll(String appid, List<P> objects) {
+		await(createAllAsync(appid, objects));
+	}
+
+	@Override
+	public <P extends ParaObject> Map<String, P> readAll(String appid, List<String> keys, boolean getAllColumns) {
+		return await(this.<P>readAllAsync(appid, keys, getAllColumns));
+	}
+
+	@Override
+	public <P extends ParaObject> List<P> readPage(String appid, Pager pager) {
+		return await(this.<P>readPageAsync(appid, pager));
+	}
+
+	@Override
+	public <P extends ParaObject> void updateAll(String appid, List<P> objects) {
+		await(updateAllAsync(appid, objects));
+	}
+
+	@Override
+	public <P extends ParaObject> void deleteAll(String appid, List<P> objects) {
+		await(deleteAllAsync(appid, objects));
+	}
+
+	//////////////////////////////////////////////////////
+
+	@Override
+	public <P extends ParaObject> String create(P so) {
+		return create(Config.getRootAppIdentifier(), so);
+	}
+
+	@Override
+	public <P extends ParaObject> P read(String key) {
+		return read(Config.getRootAppIdentifier(), key);
+	}
+
+	@Override
+	public <P extends ParaObject> void update(P so) {
+		update(Config.getRootAppIdentifier(), so);
+	}
+
+	@Override
+	public <P extends ParaObject> void delete(P so) {
+		delete(Config.getRootAppIdentifier(), so);
+	}
+
+	@Override
+	public <P extends ParaObject> void createAll(List<P> objects) {
+		createAll(Config.getRootAppIdentifier(), objects);
+	}
+
+	@Override
+	public <P extends ParaObject> Map<String, P> readAll(List<String> keys, boolean getAllColumns) {
+		return readAll(Config.getRootAppIdentifier(), keys, getAllColumns);
+	}
+
+	@Override
+	public <P extends ParaObject> List<P> readPage(Pager pager) {
+		return readPage(Config.getRootAppIdentifier(), pager);
+	}
+
+	@Override
+	public <P extends ParaObject> void updateAll(List<P> objects) {
+		updateAll(Config.getRootAppIdentifier(), objects);
+	}
+
+	@Override
+	public <P extends ParaObject> void deleteAll(List<P> objects) {
+		deleteAll(Config.getRootAppIdentifier(), objects);
+	}
+
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.utils.Config;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoCompressor;
+import com.mongodb.MongoCredential;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.connection.ServerDescription;
+import com.mongodb.event.ClusterDescriptionChangedEvent;
+import com.mongodb.event.ClusterListenerAdapter;
+import com.mongodb.reactivestreams.client.MongoClients;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single MongoDB deployment which Para apps can be routed to.
+ * Each cluster has its own client, connection pool, table name cache and health state.
+ * The default cluster is configured with the {@code para.mongodb.*} properties and named clusters
+ * with {@code para.mongodb.clusters.{name}.*}, falling back to the default cluster's settings.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class MongoDBCluster {
+
+	private static final Logger logger = LoggerFactory.getLogger(MongoDBCluster.class);
+
+	/**
+	 * The name of the default cluster.
+	 */
+	static final String DEFAULT = "default";
+
+	private final String name;
+	private final String prefix;
+	private volatile MongoClient client;
+	private volatile MongoDatabase database;
+	private volatile com.mongodb.reactivestreams.client.MongoClient asyncClient;
+	private volatile com.mongodb.reactivestreams.client.MongoDatabase asyncDatabase;
+	private volatile boolean healthy = true;
+	private volatile boolean knownTablesLoaded = false;
+	private final Set<String> knownTables = ConcurrentHashMap.newKeySet();
+
+	MongoDBCluster(String name) {
+		this.name = StringUtils.isBlank(name) ? DEFAULT : name;
+		this.prefix = DEFAULT.equals(this.name) ? "mongodb." : "mongodb.clusters." + this.name + ".";
+	}
+
+	/**
+	 * @return the name of this cluster
+	 */
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * @return false if none of the servers in this cluster are reachable
+	 */
+	boolean isHealthy() {
+		return healthy;
+	}
+
+	/**
+	 * @return the lowercase names of all Para tables known to exist in this cluster
+	 */
+	Set<String> getKnownTables() {
+		return knownTables;
+	}
+
+	boolean isKnownTablesLoaded() {
+		return knownTablesLoaded;
+	}
+
+	void setKnownTablesLoaded(boolean knownTablesLoaded) {
+		this.knownTablesLoaded = knownTablesLoaded;
+	}
+
+	/**
+	 * Returns the database for this cluster. The client is created only once, on first use.
+	 * @return a MongoDB database
+	 */
+	MongoDatabase getDatabase() {
+		MongoDatabase db = database;
+		if (db != null) {
+			return db;
+		}
+		synchronized (this) {
+			if (database == null) {
+				String dbName = getParam("database", Config.getRootAppIdentifier());
+				client = newClient(dbName);
+				database = client.getDatabase(dbName);
+			}
+			return database;
+		}
+	}
+
+	/**
+	 * Returns the database for this cluster, using the asynchronous (Reactive Streams) driver.
+	 * The client is created only once, on first use, and has its own connection pool.
+	 * @return a MongoDB database
+	 */
+	com.mongodb.reactivestreams.client.MongoDatabase getAsyncDatabase() {
+		com.mongodb.reactivestreams.client.MongoDatabase db = asyncDatabase;
+		if (db != null) {
+			return db;
+		}
+		synchronized (this) {
+			if (asyncDatabase == null) {
+				String dbName = getParam("database", Config.getRootAppIdentifier());
+				asyncClient = MongoClients.create(getAsyncClientSettings(dbName).build());
+				asyncDatabase = asyncClient.getDatabase(dbName);
+			}
+			return asyncDatabase;
+		}
+	}
+
+	/**
+	 * Closes the clients and releases their connection pools.
+	 */
+	synchronized void shutdown() {
+		if (client != null) {
+			client.close();
+			client = null;
+			database = null;
+			knownTables.clear();
+			knownTablesLoaded = false;
+		}
+		if (asyncClient != null) {
+			asyncClient.close();
+			asyncClient = null;
+			asyncDatabase = null;
+		}
+	}
+
+	/**
+	 * Returns the client options, including the connection pool settings and the {@link ParaObjectCodec}.
+	 * The pool can be configured with the {@code para.mongodb.pool.*} properties.
+	 * @return a builder for {@link MongoClientOptions}
+	 */
+	MongoClientOptions.Builder getClientOptions() {
+		MongoClientOptions.Builder options = MongoClientOptions.builder();
+		MongoDBMetricsListener metrics = getMetricsListener(true);
+		if (metrics != null) {
+			options.addCommandListener(metrics).addConnectionPoolListener(metrics);
+		}
+		// connection pool settings - defaults are the same as the driver's defaults
+		return options.
+				codecRegistry(ParaObjectCodec.getCodecRegistry(MongoClient.getDefaultCodecRegistry())).
+				sslEnabled(getBoolean("ssl_enabled", false)).
+				sslInvalidHostNameAllowed(getBoolean("ssl_allow_all", false)).
+				connectionsPerHost(getInt("pool.max_size", 100)).
+				minConnectionsPerHost(getInt("pool.min_size", 0)).
+				maxWaitTime(getInt("pool.max_wait_time", 120000)).
+				maxConnectionIdleTime(getInt("pool.max_idle_time", 0)).
+				maxConnectionLifeTime(getInt("pool.max_life_time", 0)).
+				compressorList(getCompressors()).
+				addClusterListener(new ClusterListenerAdapter() {
+					public void clusterDescriptionChanged(ClusterDescriptionChangedEvent event) {
+						boolean ok = false;
+						for (ServerDescription server : event.getNewDescription().getServerDescriptions()) {
+							ok = ok || server.isOk();
+						}
+						if (ok != healthy) {
+							logger.warn("MongoDB cluster '{}' is {}.", name, ok ? "reachable again" : "unreachable");
+						}
+						healthy = ok;
+					}
+				});
+	}
+
+	/**
+	 * Returns the wire protocol compressors, in order of preference, from {@code para.mongodb.compressors}.
+	 * Snappy and Zstandard need the snappy-java and zstd-jni libraries on the classpath.
+	 * The level in {@code para.mongodb.compression_level} (0-9) is only supported by zlib.
+	 * @return a list of compressors, empty if compression is disabled
+	 */
+	List<MongoCompressor> getCompressors() {
+		List<MongoCompressor> compressors = new ArrayList<MongoCompressor>();
+		int level = getInt("compression_level", -1);
+		if (level < -1 || level > 9) {
+			logger.warn("Invalid MongoDB compression level {} - using the default level.", level);
+			level = -1;
+		}
+		for (String compressor : StringUtils.split(getParam("compressors", ""), ", ")) {
+			if ("zlib".equalsIgnoreCase(compressor)) {
+				compressors.add(level < 0 ? MongoCompressor.createZlibCompressor() :
+						MongoCompressor.createZlibCompressor().withProperty(MongoCompressor.LEVEL, level));
+			} else if ("snappy".equalsIgnoreCase(compressor) && isClassPresent("org.xerial.snappy.Snappy")) {
+				compressors.add(MongoCompressor.createSnappyCompressor());
+				warnIfLevelIgnored(compressor, level);
+			} else if ("zstd".equalsIgnoreCase(compressor) && isClassPresent("com.github.luben.zstd.Zstd")) {
+				compressors.add(MongoCompressor.createZstdCompressor());
+				warnIfLevelIgnored(compressor, level);
+			} else {
+				logger.warn("MongoDB compressor '{}' is not supported or its library is missing - skipping it.", compressor);
+			}
+		}
+		return compressors;
+	}
+
+	private void warnIfLevelIgnored(String compressor, int level) {
+		// the driver only passes the level to zlib - zstd always uses its maximum level and snappy has no levels
+		if (level >= 0) {
+			logger.warn("MongoDB compression level {} doesn't apply to the '{}' compressor - only zlib supports levels.",
+					level, compressor);
+		}
+	}
+
+	/**
+	 * Returns the settings for the asynchronous client. These are the same as the ones for the synchronous client.
+	 * @param dbName the database name, used for authentication
+	 * @return a builder for {@link MongoClientSettings}
+	 */
+	MongoClientSettings.Builder getAsyncClientSettings(String dbName) {
+		MongoClientSettings.Builder settings = MongoClientSettings.builder().
+				codecRegistry(ParaObjectCodec.getCodecRegistry(MongoClientSettings.getDefaultCodecRegistry())).
+				applyToSslSettings(ssl -> ssl.enabled(getBoolean("ssl_enabled", false)).
+						invalidHostNameAllowed(getBoolean("ssl_allow_all", false))).
+				applyToConnectionPoolSettings(pool -> pool.maxSize(getInt("pool.max_size", 100)).
+						minSize(getInt("pool.min_size", 0)).
+						maxWaitTime(getInt("pool.max_wait_time", 120000), TimeUnit.MILLISECONDS).
+						maxConnectionIdleTime(getInt("pool.max_idle_time", 0), TimeUnit.MILLISECONDS).
+						maxConnectionLifeTime(getInt("pool.max_life_time", 0), TimeUnit.MILLISECONDS)).
+				compressorList(getCompressors());
+		MongoDBMetricsListener metrics = getMetricsListener(false);
+		if (metrics != null) {
+			settings.addCommandListener(metrics).
+					applyToConnectionPoolSettings(pool -> pool.addConnectionPoolListener(metrics));
+		}
+		String dbUri = getParam("uri", "");
+		if (!StringUtils.isBlank(dbUri)) {
+			// options in the URI take precedence, like they do for the synchronous client
+			settings.applyConnectionString(new ConnectionString(dbUri));
+		} else {
+			ServerAddress s = new ServerAddress(getParam("host", "localhost"), getInt("port", 27017));
+			settings.applyToClusterSettings(cluster -> cluster.hosts(Collections.singletonList(s)));
+			String dbUser = getParam("user", "");
+			String dbPass = getParam("password", "");
+			if (!StringUtils.isBlank(dbUser) && !StringUtils.isBlank(dbPass)) {
+				settings.credential(MongoCredential.createCredential(dbUser, dbName, dbPass.toCharArray()));
+			}
+		}
+		return settings;
+	}
+
+	private MongoDBMetricsListener getMetricsListener(boolean sync) {
+		MongoDBMetricsSink sink = MongoDBUtils.getMetricsSink();
+		return (sink == null) ? null : new MongoDBMetricsListener(name, sink, sync);
+	}
+
+	private static boolean isClassPresent(String className) {
+		try {
+			Class.forName(className, false, MongoDBCluster.class.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	private MongoClient newClient(String dbName) {
+		MongoClientOptions options = getClientOptions().build();
+		String dbUri = getParam("uri", "");
+		if (!StringUtils.isBlank(dbUri)) {
+			logger.info("MongoDB uri: " + dbUri.replaceAll("mongodb://.*@", "mongodb://<user:password>@") +
+					", database: " + dbName + ", cluster: " + name);
+			MongoClientURI uri = new MongoClientURI(dbUri, new MongoClientOptions.Builder(options));
+			return new MongoClient(uri);
+		} else {
+			String dbHost = getParam("host", "localhost");
+			int dbPort = getInt("port", 27017);
+			String dbUser = getParam("user", "");
+			String dbPass = getParam("password", "");
+			logger.info("MongoDB host: " + dbHost + ":" + dbPort + ", database: " + dbName + ", cluster: " + name);
+			ServerAddress s = new ServerAddress(dbHost, dbPort);
+
+			if (!StringUtils.isBlank(dbUser) && !StringUtils.isBlank(dbPass)) {
+				MongoCredential credential = MongoCredential.createCredential(dbUser, dbName, dbPass.toCharArray());
+				return new MongoClient(s, credential, options);
+			} else {
+				return new MongoClient(s, options);
+			}
+		}
+	}
+
+	/**
+	 * Reads a config property for this cluster, falling back to the default cluster's value.
+	 * @param key the key, without the "mongodb." prefix
+	 * @param defaultValue default value
+	 * @return the value
+	 */
+	String getParam(String key, String defaultValue) {
+		String value = Config.getConfigParam("mongodb." + key, defaultValue);
+		return DEFAULT.equals(name) ? value : Config.getConfigParam(prefix + key, value);
+	}
+
+	int getInt(String key, int defaultValue) {
+		return NumberUtils.toInt(getParam(key, Integer.toString(defaultValue)), defaultValue);
+	}
+
+	boolean getBoolean(String key, boolean defaultValue) {
+		return Boolean.parseBoolean(getParam(key, Boolean.toString(defaultValue)));
+	}
+}
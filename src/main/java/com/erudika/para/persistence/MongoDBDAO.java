@@ -17,32 +17,42 @@
  */
 package com.erudika.para.persistence;
 
-import com.erudika.para.AppCreatedListener;
-import com.erudika.para.AppDeletedListener;
 import java.lang.annotation.Annotation;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.inject.Singleton;
 import org.apache.commons.lang3.StringUtils;
+import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.Binary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.erudika.para.annotations.Locked;
-import com.erudika.para.core.App;
 import com.erudika.para.core.ParaObject;
-import com.erudika.para.core.utils.ParaObjectUtils;
 import static com.erudika.para.persistence.MongoDBUtils.getTable;
+import com.erudika.para.persistence.MongoDBUtils.Operation;
 import com.erudika.para.utils.Config;
 import com.erudika.para.utils.Pager;
 import com.erudika.para.utils.Utils;
 import com.mongodb.BasicDBObject;
+import com.mongodb.MongoClient;
 import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteOneModel;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
 import com.mongodb.client.model.ReplaceOptions;
 import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.WriteModel;
@@ -50,7 +60,9 @@ import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -64,49 +76,65 @@ import org.bson.conversions.Bson;
 public class MongoDBDAO implements DAO {
 
 	private static final Logger logger = LoggerFactory.getLogger(MongoDBDAO.class);
-	private static final String ID = "_id";
-	private static final String OBJECT_ID = "_ObjectId";
+	static final String ID = "_id";
+	static final String OBJECT_ID = "_ObjectId";
+	private static final String FIELD_NAME_ENCODING_PREFIX = "Base64:";
 	private static final Pattern FIELD_NAME_ENCODING_PATTERN = Pattern.compile("^Base64:.*?:(.*)$");
+	private static final Pattern LEADING_DOLLARS_PATTERN = Pattern.compile("^\\$+");
+	private static final Pattern DOT_PATTERN = Pattern.compile("\\.");
+	// encoded and decoded field names are cached - the same property keys tend to show up over and over again
+	private static final int FIELD_NAME_CACHE_SIZE = Config.getConfigInt("mongodb.field_name_cache_size", 10000);
+	private static final Map<String, String> SANITIZED_FIELDS = new ConcurrentHashMap<String, String>();
+	private static final Map<String, String> DESANITIZED_FIELDS = new ConcurrentHashMap<String, String>();
+	// objects are read and written without Documents, unless fields may have to be spilled over to GridFS
+	private static final boolean USE_CODEC = ParaObjectCodec.ENABLED && !SpillOver.ENABLED;
+	private static final boolean LAZY_READS = LazyBsonMap.ENABLED && !SpillOver.ENABLED;
+	private static final boolean UNORDERED_UPDATES = Config.getConfigBoolean("mongodb.update_all.unordered", false);
+	private static final boolean UPSERT_CREATES = Config.getConfigBoolean("mongodb.create_all.upsert", false);
+	// the fields which all Para objects have
+	static final Set<String> CORE_FIELDS = Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList(Config._ID,
+			Config._TIMESTAMP, Config._TYPE, Config._APPID, Config._PARENTID, Config._CREATORID, Config._UPDATED,
+			Config._NAME, Config._TAGS, "votes", Config._VERSION, "stored", "indexed", "cached")));
+	// fields read by readAll() when getAllColumns is false
+	static final Set<String> PROJECTED_FIELDS = getProjectedFieldsFromConfig();
 
 	/**
 	 * Default constructor.
 	 */
 	public MongoDBDAO() {
-		// set up automatic table creation and deletion
-		App.addAppCreatedListener(new AppCreatedListener() {
-			public void onAppCreated(App app) {
-				if (app != null && !app.isSharingTable()) {
-					MongoDBUtils.createTable(app.getAppIdentifier());
-				}
-			}
-		});
-		App.addAppDeletedListener(new AppDeletedListener() {
-			public void onAppDeleted(App app) {
-				if (app != null && !app.isSharingTable()) {
-					MongoDBUtils.deleteTable(app.getAppIdentifier());
-				}
-			}
-		});
+		MongoDBUtils.initDAO();
 	}
 
 	/////////////////////////////////////////////
 	//			CORE FUNCTIONS
 	/////////////////////////////////////////////
 
+	/**
+	 * Creates an object. With {@code para.mongodb.write_behind.enabled = true} the object is only queued and
+	 * this returns before it is written, so write errors don't reach the caller - they are logged, regardless
+	 * of {@code para.fail_on_write_errors}. Use {@link #queueCreate(java.lang.String, com.erudika.para.core.ParaObject)}
+	 * to find out if the write failed.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param so the object
+	 * @return the object id
+	 */
 	@Override
 	public <P extends ParaObject> String create(String appid, P so) {
 		if (so == null) {
 			return null;
 		}
-		if (StringUtils.isBlank(so.getId())) {
-			so.setId(MongoDBUtils.generateNewId());
-			logger.debug("Generated id: " + so.getId());
+		if (WriteBehindQueue.ENABLED && !StringUtils.isBlank(appid)) {
+			queueCreate(appid, so);
+			return so.getId();
 		}
-		if (so.getTimestamp() == null) {
-			so.setTimestamp(Utils.timestamp());
+		prepareForCreate(appid, so);
+		if (USE_CODEC) {
+			createRow(so.getId(), appid, so);
+		} else {
+			createRow(so.getId(), appid, toRow(so, null, false, true));
 		}
-		so.setAppid(appid);
-		createRow(so.getId(), appid, toRow(so, null, false, true));
+		DeltaUpdates.track(so);
 		logger.debug("DAO.create() {}", so.getId());
 		return so.getId();
 	}
@@ -116,28 +144,153 @@ public class MongoDBDAO implements DAO {
 		if (StringUtils.isBlank(key)) {
 			return null;
 		}
-		P so = fromRow(readRow(key, appid));
+		WriteBehindQueue.flush(appid);
+		P so = USE_CODEC ? readObject(key, appid) : fromRow(readRow(key, appid));
+		DeltaUpdates.track(so);
 		logger.debug("DAO.read() {} -> {}", key, so == null ? null : so.getType());
 		return so != null ? so : null;
 	}
 
+	/**
+	 * Updates an object. With {@code para.mongodb.write_behind.enabled = true} write errors don't reach the caller.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param so the object
+	 * @see #create(java.lang.String, com.erudika.para.core.ParaObject)
+	 */
 	@Override
 	public <P extends ParaObject> void update(String appid, P so) {
 		if (so != null && so.getId() != null) {
+			if (WriteBehindQueue.ENABLED) {
+				queueUpdate(appid, so);
+				return;
+			}
 			so.setUpdated(Utils.timestamp());
-			updateRow(so.getId(), appid, toRow(so, Locked.class, true));
+			Document row = toRow(so, Locked.class, true);
+			// only the fields which changed since the object was read are written, if it was read
+			Set<String> removed = DeltaUpdates.diff(so, row);
+			if (!updateRow(so.getId(), appid, row, removed)) {
+				DeltaUpdates.untrack(so);
+			}
 			logger.debug("DAO.update() {}", so.getId());
 		}
 	}
 
+	/**
+	 * Deletes an object. With {@code para.mongodb.write_behind.enabled = true} write errors don't reach the caller.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param so the object
+	 * @see #create(java.lang.String, com.erudika.para.core.ParaObject)
+	 */
 	@Override
 	public <P extends ParaObject> void delete(String appid, P so) {
 		if (so != null && so.getId() != null) {
+			if (WriteBehindQueue.ENABLED) {
+				queueDelete(appid, so);
+				return;
+			}
 			deleteRow(so.getId(), appid);
 			logger.debug("DAO.delete() {}", so.getId());
 		}
 	}
 
+	/////////////////////////////////////////////
+	//			WRITE-BEHIND FUNCTIONS
+	/////////////////////////////////////////////
+
+	/**
+	 * Queues an object to be created in a batch with other writes to the same app, instead of writing it right away.
+	 * Batches are written when they are full or after a short delay (see {@code para.mongodb.write_behind.*}).
+	 * The calling thread is blocked only if the queue is full. With {@code para.mongodb.write_behind.enabled = true},
+	 * {@link #create(java.lang.String, com.erudika.para.core.ParaObject)} also goes through the queue.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param so the object
+	 * @return a future which completes with the object id, once the object is written
+	 */
+	public <P extends ParaObject> CompletableFuture<String> queueCreate(String appid, P so) {
+		if (so == null || StringUtils.isBlank(appid)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		if (SpillOver.ENABLED) {
+			return CompletableFuture.completedFuture(create(appid, so));
+		}
+		prepareForCreate(appid, so);
+		final String id = so.getId();
+		DeltaUpdates.track(so);
+		return WriteBehindQueue.submit(appid, new ReplaceOneModel<BsonDocument>(new Document(ID, id),
+				snapshot(appid, toRow(so, null, false, true)), new ReplaceOptions().upsert(true))).whenComplete((r, e) -> {
+					if (e != null) {
+						DeltaUpdates.untrack(so);
+					}
+				}).thenApply(r -> id);
+	}
+
+	/**
+	 * Queues an object to be updated in a batch with other writes to the same app, instead of writing it right away.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param so the object
+	 * @return a future which completes once the object is updated
+	 * @see #queueCreate(java.lang.String, com.erudika.para.core.ParaObject)
+	 */
+	public <P extends ParaObject> CompletableFuture<Void> queueUpdate(String appid, P so) {
+		if (so == null || so.getId() == null || StringUtils.isBlank(appid)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		if (SpillOver.ENABLED) {
+			update(appid, so);
+			return CompletableFuture.completedFuture(null);
+		}
+		so.setUpdated(Utils.timestamp());
+		Document row = toRow(so, Locked.class, true);
+		Document update = getUpdate(row, DeltaUpdates.diff(so, row));
+		if (update.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return WriteBehindQueue.submit(appid, new UpdateOneModel<BsonDocument>(new Document(ID, so.getId()),
+				snapshot(appid, update))).
+				whenComplete((r, e) -> {
+					if (e != null) {
+						DeltaUpdates.untrack(so);
+					}
+				});
+	}
+
+	/**
+	 * Queues an object to be deleted in a batch with other writes to the same app, instead of deleting it right away.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param so the object
+	 * @return a future which completes once the object is deleted
+	 * @see #queueCreate(java.lang.String, com.erudika.para.core.ParaObject)
+	 */
+	public <P extends ParaObject> CompletableFuture<Void> queueDelete(String appid, P so) {
+		if (so == null || so.getId() == null || StringUtils.isBlank(appid)) {
+			return CompletableFuture.completedFuture(null);
+		}
+		if (SpillOver.ENABLED) {
+			delete(appid, so);
+			return CompletableFuture.completedFuture(null);
+		}
+		return WriteBehindQueue.submit(appid, new DeleteOneModel<BsonDocument>(new Document(ID, so.getId())));
+	}
+
+	// rows share nested maps with their objects, so queued rows are encoded right away - otherwise changes made
+	// to an object before the queue is flushed would end up in the write, or break its encoding
+	private static RawBsonDocument snapshot(String appid, Document row) {
+		return new RawBsonDocument(row, getTable(appid, Operation.WRITE).getCodecRegistry().get(Document.class));
+	}
+
+	/**
+	 * Writes all queued writes of an app and waits for them to complete.
+	 * @param appid the app name
+	 */
+	public void flush(String appid) {
+		WriteBehindQueue.flush(appid);
+	}
+
 	/////////////////////////////////////////////
 	//				ROW FUNCTIONS
 	/////////////////////////////////////////////
@@ -147,9 +300,28 @@ public class MongoDBDAO implements DAO {
 			return null;
 		}
 		try {
+			MongoCollection<Document> table = getTable(appid, Operation.WRITE);
+			Map<String, Document> spilled = SpillOver.findSpilled(table, Collections.singletonList(key));
+			SpillOver.spill(appid, key, row);
 			// if there isn't a document with the same id then create a new document
 			// else replace the document with the same id with the new one
-			getTable(appid).replaceOne(new Document(ID, key), row, new ReplaceOptions().upsert(true));
+			table.replaceOne(new Document(ID, key), row, new ReplaceOptions().upsert(true));
+			SpillOver.deleteFiles(appid, spilled, null);
+		} catch (Exception e) {
+			logger.error(null, e);
+			throwIfNecessary(e);
+		}
+		return key;
+	}
+
+	private String createRow(String key, String appid, ParaObject so) {
+		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid) || so == null) {
+			return null;
+		}
+		try {
+			// the object is written directly by ParaObjectCodec, without an intermediate Document
+			getTable(appid, Operation.WRITE).withDocumentClass(ParaObject.class).
+					replaceOne(new Document(ID, key), so, new ReplaceOptions().upsert(true));
 		} catch (Exception e) {
 			logger.error(null, e);
 			throwIfNecessary(e);
@@ -158,39 +330,90 @@ public class MongoDBDAO implements DAO {
 	}
 
 	//http://www.mkyong.com/mongodb/java-mongodb-update-document/
-	private void updateRow(String key, String appid, Document row) {
-		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid) || row == null || row.isEmpty()) {
-			return;
+	private boolean updateRow(String key, String appid, Document row, Set<String> removed) {
+		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid) || row == null) {
+			return false;
+		}
+		if (row.isEmpty() && (removed == null || removed.isEmpty())) {
+			// nothing has changed
+			return true;
 		}
 		try {
-			UpdateResult u = getTable(appid).updateOne(new Document(ID, key), new Document("$set", row));
+			MongoCollection<Document> table = getTable(appid, Operation.WRITE);
+			Map<String, Document> spilled = SpillOver.findSpilled(table, Collections.singletonList(key));
+			SpillOver.spill(appid, key, row);
+			UpdateResult u = table.updateOne(new Document(ID, key), getUpdate(row, removed));
+			SpillOver.deleteFiles(appid, spilled, Collections.singletonMap(key, SpillOver.getWrittenFields(row)));
 			logger.debug("key: " + key + " updated count: " + u.getModifiedCount());
+			return true;
 		} catch (Exception e) {
 			logger.error(null, e);
 			throwIfNecessary(e);
 		}
+		return false;
+	}
+
+	private static Document getUpdate(Document row, Set<String> removed) {
+		Document update = new Document();
+		if (SpillOver.ENABLED) {
+			update = SpillOver.toUpdate(row);
+		} else if (!row.isEmpty()) {
+			update.put("$set", row);
+		}
+		return DeltaUpdates.addUnset(update, removed);
 	}
 
-	private Document readRow(String key, String appid) {
+	private Map<String, Object> readRow(String key, String appid) {
 		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid)) {
 			return null;
 		}
-		Document row = null;
+		Map<String, Object> row = null;
+		Document doc = null;
 		try {
-			row = getTable(appid).find(new Document(ID, key)).first();
-			logger.debug("id: " + key + " row null: " + (row == null));
+			MongoCollection<Document> table = getTable(appid, Operation.READ);
+			if (LAZY_READS) {
+				RawBsonDocument raw = table.find(new Document(ID, key), RawBsonDocument.class).first();
+				row = (raw == null) ? null : new LazyBsonMap(raw, table.getCodecRegistry(), true);
+			} else {
+				doc = table.find(new Document(ID, key)).first();
+			}
 		} catch (Exception e) {
 			logger.error(null, e);
 		}
+		if (doc != null) {
+			// outside of the try block - an object with a spilled field which can't be read must not look like
+			// a missing one, or it could be created again over the existing one
+			SpillOver.reassemble(appid, Collections.singletonList(doc));
+			row = documentToMap(doc);
+		}
+		logger.debug("id: " + key + " row null: " + (row == null));
 		return (row == null || row.isEmpty()) ? null : row;
 	}
 
+	@SuppressWarnings("unchecked")
+	private <P extends ParaObject> P readObject(String key, String appid) {
+		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid)) {
+			return null;
+		}
+		P so = null;
+		try {
+			so = (P) getTable(appid, Operation.READ).find(new Document(ID, key), ParaObject.class).first();
+			logger.debug("id: " + key + " row null: " + (so == null));
+		} catch (Exception e) {
+			logger.error(null, e);
+		}
+		return so;
+	}
+
 	private void deleteRow(String key, String appid) {
 		if (StringUtils.isBlank(key) || StringUtils.isBlank(appid)) {
 			return;
 		}
 		try {
-			DeleteResult d = getTable(appid).deleteOne(new Document(ID, key));
+			MongoCollection<Document> table = getTable(appid, Operation.WRITE);
+			Map<String, Document> spilled = SpillOver.findSpilled(table, Collections.singletonList(key));
+			DeleteResult d = table.deleteOne(new Document(ID, key));
+			SpillOver.deleteFiles(appid, spilled, null);
 			logger.debug("key: " + key + " deleted count: " + d.getDeletedCount());
 		} catch (Exception e) {
 			logger.error(null, e);
@@ -207,49 +430,163 @@ public class MongoDBDAO implements DAO {
 		if (objects == null || objects.isEmpty() || StringUtils.isBlank(appid)) {
 			return;
 		}
-		try {
-			List<Document> documents = new ArrayList<Document>();
-			for (ParaObject so : objects) {
-				if (so != null) {
-					if (StringUtils.isBlank(so.getId())) {
-						so.setId(MongoDBUtils.generateNewId());
-						logger.debug("Generated id: " + so.getId());
-					}
-					if (so.getTimestamp() == null) {
-						so.setTimestamp(Utils.timestamp());
-					}
-					so.setAppid(appid);
-					documents.add(toRow(so, null, false, true));
+		WriteBehindQueue.flush(appid);
+		BulkWriteReport report = new BulkWriteReport();
+		// objects are mapped and inserted one chunk at a time, so memory use doesn't depend on the size of the list
+		BulkWrites.forEachChunk(objects, report, chunk -> createChunk(appid, chunk, report, UPSERT_CREATES));
+		if (!report.isSuccessful()) {
+			logger.error("Failed to create {} of {} objects: {}", report.getFailed().size(), objects.size(), report.getFailed());
+			throwIfNecessary(new IllegalStateException("Failed to create objects " + report.getFailed().keySet(), report.getError()));
+		}
+		logger.debug("DAO.createAll() {}", objects.size());
+	}
+
+	/**
+	 * Creates or replaces multiple objects with unordered bulk upserts, like {@link #create(java.lang.String,
+	 * com.erudika.para.core.ParaObject)} does for a single object. Unlike inserts, upserts don't fail if an object
+	 * already exists, so a batch can safely be written again after a partial failure. The list is split into chunks of
+	 * {@code para.mongodb.bulk.chunk_size} objects, which are written in parallel. With
+	 * {@code para.mongodb.create_all.upsert = true}, {@link #createAll(java.lang.String, java.util.List)} works like this too.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param objects a list of objects
+	 * @return the outcome for each object
+	 */
+	public <P extends ParaObject> BulkWriteReport upsertAll(String appid, List<P> objects) {
+		BulkWriteReport report = new BulkWriteReport();
+		if (StringUtils.isBlank(appid) || objects == null || objects.isEmpty()) {
+			return report;
+		}
+		WriteBehindQueue.flush(appid);
+		BulkWrites.forEachChunk(objects, report, chunk -> createChunk(appid, chunk, report, true));
+		logger.debug("DAO.upsertAll() {} written, {} failed", report.getSucceeded().size(), report.getFailed().size());
+		return report;
+	}
+
+	private <P extends ParaObject> void createChunk(String appid, List<P> chunk, BulkWriteReport report, boolean upsert) {
+		List<ParaObject> created = new ArrayList<ParaObject>(chunk.size());
+		List<Document> documents = new ArrayList<Document>(chunk.size());
+		List<String> ids = new ArrayList<String>(chunk.size());
+		for (P so : chunk) {
+			if (so == null) {
+				continue;
+			}
+			try {
+				prepareForCreate(appid, so);
+				if (!USE_CODEC) {
+					// without the codec, objects are mapped here so that a bad object fails on its own
+					Document row = toRow(so, null, false, true);
+					SpillOver.spill(appid, so.getId(), row);
+					documents.add(row);
 				}
+				created.add(so);
+				ids.add(so.getId());
+			} catch (Exception e) {
+				report.addFailed(so.getId(), e.getMessage(), e);
 			}
-			if (!documents.isEmpty()) {
-				getTable(appid).insertMany(documents);
+		}
+		if (created.isEmpty()) {
+			return;
+		}
+		Map<Integer, String> failures = Collections.emptyMap();
+		Map<String, Document> spilled = Collections.emptyMap();
+		Exception error = null;
+		try {
+			MongoCollection<Document> table = getTable(appid, Operation.WRITE_IMPORT);
+			if (USE_CODEC) {
+				write(table.withDocumentClass(ParaObject.class), created, ids, upsert);
+			} else {
+				if (upsert) {
+					spilled = SpillOver.findSpilled(table, ids);
+				}
+				write(table, documents, ids, upsert);
 			}
 		} catch (Exception e) {
-			logger.error(null, e);
-			throwIfNecessary(e);
+			error = e;
+			failures = BulkWrites.getFailures(e, created.size());
+		}
+		for (int i = 0; i < created.size(); i++) {
+			if (failures.containsKey(i)) {
+				// the replaced document still points to its old files
+				spilled.remove(ids.get(i));
+				report.addFailed(ids.get(i), failures.get(i), error);
+			} else {
+				DeltaUpdates.track(created.get(i));
+				report.addSucceeded(ids.get(i));
+			}
+		}
+		SpillOver.deleteFiles(appid, spilled, null);
+	}
+
+	private static <T> void write(MongoCollection<T> table, List<T> documents, List<String> ids, boolean upsert) {
+		if (upsert) {
+			List<WriteModel<T>> models = new ArrayList<WriteModel<T>>(documents.size());
+			ReplaceOptions options = new ReplaceOptions().upsert(true);
+			for (int i = 0; i < documents.size(); i++) {
+				models.add(new ReplaceOneModel<T>(new Document(ID, ids.get(i)), documents.get(i), options));
+			}
+			table.bulkWrite(models, new BulkWriteOptions().ordered(false));
+		} else {
+			table.insertMany(documents, new InsertManyOptions().ordered(false));
 		}
-		logger.debug("DAO.createAll() {}", objects.size());
 	}
 
 	@Override
 	public <P extends ParaObject> Map<String, P> readAll(String appid, List<String> keys, boolean getAllColumns) {
+		return readAll(appid, keys, getAllColumns ? null : PROJECTED_FIELDS);
+	}
+
+	/**
+	 * Reads multiple objects, with only the given fields filled in.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param keys a list of object ids
+	 * @param fields the names of the fields to read, or dot-separated paths to nested fields, e.g. "properties.title".
+	 * All fields are read if this is null or empty. The type is always read. Objects with only some of their fields
+	 * are not tracked for delta updates and should not be updated, since that would clear the missing fields.
+	 * @return a map of ids to objects
+	 */
+	@SuppressWarnings("unchecked")
+	public <P extends ParaObject> Map<String, P> readAll(String appid, List<String> keys, Set<String> fields) {
 		if (keys == null || keys.isEmpty() || StringUtils.isBlank(appid)) {
 			return new LinkedHashMap<String, P>();
 		}
+		WriteBehindQueue.flush(appid);
 		Map<String, P> results = new LinkedHashMap<String, P>(keys.size(), 0.75f, true);
 		BasicDBObject inQuery = new BasicDBObject();
 		inQuery.put(ID, new BasicDBObject("$in", keys));
+		Bson projection = getProjection(fields);
 
-		MongoCursor<Document> cursor = getTable(appid).find(inQuery).iterator();
-		while (cursor.hasNext()) {
-			Document d = cursor.next();
-			P obj = fromRow(d);
-			if (d != null) {
-				results.put(d.getString(ID), obj);
+		MongoCollection<Document> table = getTable(appid, Operation.READ_BATCH);
+		if (USE_CODEC) {
+			MongoCursor<ParaObject> cursor = table.find(inQuery, ParaObject.class).projection(projection).iterator();
+			while (cursor.hasNext()) {
+				ParaObject obj = cursor.next();
+				if (obj != null) {
+					results.put(obj.getId(), (P) obj);
+				}
+			}
+		} else if (LAZY_READS) {
+			MongoCursor<RawBsonDocument> cursor = table.find(inQuery, RawBsonDocument.class).projection(projection).iterator();
+			while (cursor.hasNext()) {
+				RawBsonDocument raw = cursor.next();
+				P obj = fromRow(new LazyBsonMap(raw, table.getCodecRegistry(), true));
+				results.put(raw.getString(ID).getValue(), obj);
+			}
+		} else {
+			List<Document> rows = table.find(inQuery).projection(projection).into(new ArrayList<Document>(keys.size()));
+			SpillOver.reassemble(appid, rows);
+			for (Document d : rows) {
+				P obj = fromRow(d);
+				if (d != null) {
+					results.put(d.getString(ID), obj);
+				}
 			}
 		}
-
+		// a snapshot of a partially read object would take the missing fields for empty ones
+		if (projection == null) {
+			DeltaUpdates.trackAll(results.values());
+		}
 		logger.debug("DAO.readAll() {}", results.size());
 		return results;
 	}
@@ -263,29 +600,34 @@ public class MongoDBDAO implements DAO {
 		if (pager == null) {
 			pager = new Pager();
 		}
+		WriteBehindQueue.flush(appid);
+		List<Document> rows = new ArrayList<Document>(pager.getLimit());
 		try {
 			String lastKey = pager.getLastKey();
-			MongoCursor<Document> cursor;
 			Bson filter = Filters.gt(OBJECT_ID, lastKey);
 			if (lastKey == null) {
-				cursor = getTable(appid).find().batchSize(pager.getLimit()).limit(pager.getLimit()).iterator();
+				getTable(appid, Operation.READ_PAGE).find().batchSize(pager.getLimit()).limit(pager.getLimit()).into(rows);
 			} else {
-				cursor = getTable(appid).find(filter).batchSize(pager.getLimit()).limit(pager.getLimit()).iterator();
-			}
-			while (cursor.hasNext()) {
-				Map<String, Object> row = documentToMap(cursor.next());
-				P obj = fromRow(row);
-				if (obj != null) {
-					results.add(obj);
-					pager.setLastKey((String) row.get(OBJECT_ID));
-				}
-			}
-			if (!results.isEmpty()) {
-				pager.setCount(pager.getCount() + results.size());
+				getTable(appid, Operation.READ_PAGE).find(filter).batchSize(pager.getLimit()).limit(pager.getLimit()).into(rows);
 			}
 		} catch (Exception e) {
 			logger.error(null, e);
 		}
+		// outside of the try block - a page with a spilled field which can't be read must fail,
+		// rather than look like the last page
+		SpillOver.reassemble(appid, rows);
+		for (Document doc : rows) {
+			Map<String, Object> row = documentToMap(doc);
+			P obj = fromRow(row);
+			if (obj != null) {
+				results.add(obj);
+				pager.setLastKey((String) row.get(OBJECT_ID));
+			}
+		}
+		if (!results.isEmpty()) {
+			pager.setCount(pager.getCount() + results.size());
+		}
+		DeltaUpdates.trackAll(results);
 		logger.debug("readPage() page: {}, results:", pager.getPage(), results.size());
 		return results;
 	}
@@ -295,33 +637,145 @@ public class MongoDBDAO implements DAO {
 		if (StringUtils.isBlank(appid) || objects == null) {
 			return;
 		}
+		if (UNORDERED_UPDATES) {
+			BulkWriteReport report = updateAllUnordered(appid, objects);
+			if (!report.isSuccessful()) {
+				logger.error("Failed to update {} of {} objects: {}", report.getFailed().size(), objects.size(), report.getFailed());
+				throwIfNecessary(new IllegalStateException("Failed to update objects " + report.getFailed().keySet(), report.getError()));
+			}
+			return;
+		}
+		WriteBehindQueue.flush(appid);
 		try {
 			ArrayList<WriteModel<Document>> updates = new ArrayList<WriteModel<Document>>();
 			List<String> ids = new ArrayList<String>(objects.size());
+			Map<String, Set<String>> written = new HashMap<String, Set<String>>();
 			for (P object : objects) {
 				if (object != null) {
 					object.setUpdated(Utils.timestamp());
 					Document id = new Document(ID, object.getId());
-					Document data = new Document("$set", toRow(object, Locked.class, true));
+					Document row = toRow(object, Locked.class, true);
+					Set<String> removed = DeltaUpdates.diff(object, row);
+					SpillOver.spill(appid, object.getId(), row);
+					Document data = getUpdate(row, removed);
+					if (data.isEmpty()) {
+						continue;
+					}
 					UpdateOneModel<Document> um = new UpdateOneModel<Document>(id, data);
 					updates.add(um);
 					ids.add(object.getId());
+					if (SpillOver.ENABLED) {
+						written.put(object.getId(), SpillOver.getWrittenFields(row));
+					}
 				}
 			}
-			BulkWriteResult res = getTable(appid).bulkWrite(updates, new BulkWriteOptions().ordered(true));
+			if (updates.isEmpty()) {
+				return;
+			}
+			MongoCollection<Document> table = getTable(appid, Operation.WRITE_BULK);
+			Map<String, Document> spilled = SpillOver.findSpilled(table, ids);
+			BulkWriteResult res = table.bulkWrite(updates, new BulkWriteOptions().ordered(true));
+			SpillOver.deleteFiles(appid, spilled, written);
 			logger.debug("Updated: " + res.getModifiedCount() + ", keys: " + ids);
 		} catch (Exception e) {
+			// it's not known which of the objects were updated, so they will be updated in full next time
+			for (P object : objects) {
+				DeltaUpdates.untrack(object);
+			}
 			logger.error(null, e);
 			throwIfNecessary(e);
 		}
 		logger.debug("DAO.updateAll() {}", objects.size());
 	}
 
+	/**
+	 * Updates multiple objects with unordered bulk writes. The list is split into chunks of
+	 * {@code para.mongodb.bulk.chunk_size} objects, which are written in parallel, and a failed update
+	 * doesn't stop the others. With {@code para.mongodb.update_all.unordered = true},
+	 * {@link #updateAll(java.lang.String, java.util.List)} works like this too.
+	 * @param <P> the type of object
+	 * @param appid the app name
+	 * @param objects a list of objects
+	 * @return the outcome for each object
+	 */
+	public <P extends ParaObject> BulkWriteReport updateAllUnordered(String appid, List<P> objects) {
+		BulkWriteReport report = new BulkWriteReport();
+		if (StringUtils.isBlank(appid) || objects == null || objects.isEmpty()) {
+			return report;
+		}
+		WriteBehindQueue.flush(appid);
+		BulkWrites.forEachChunk(objects, report, chunk -> updateChunk(appid, chunk, report));
+		logger.debug("DAO.updateAllUnordered() {} updated, {} failed", report.getSucceeded().size(), report.getFailed().size());
+		return report;
+	}
+
+	private <P extends ParaObject> void updateChunk(String appid, List<P> chunk, BulkWriteReport report) {
+		List<WriteModel<Document>> updates = new ArrayList<WriteModel<Document>>(chunk.size());
+		List<P> updated = new ArrayList<P>(chunk.size());
+		List<String> ids = new ArrayList<String>(chunk.size());
+		Map<String, Set<String>> written = new HashMap<String, Set<String>>();
+		for (P object : chunk) {
+			if (object == null || object.getId() == null) {
+				continue;
+			}
+			object.setUpdated(Utils.timestamp());
+			Document row;
+			Document data;
+			try {
+				row = toRow(object, Locked.class, true);
+				Set<String> removed = DeltaUpdates.diff(object, row);
+				SpillOver.spill(appid, object.getId(), row);
+				data = getUpdate(row, removed);
+			} catch (Exception e) {
+				DeltaUpdates.untrack(object);
+				report.addFailed(object.getId(), e.getMessage(), e);
+				continue;
+			}
+			if (data.isEmpty()) {
+				report.addSucceeded(object.getId());
+				continue;
+			}
+			updates.add(new UpdateOneModel<Document>(new Document(ID, object.getId()), data));
+			updated.add(object);
+			ids.add(object.getId());
+			if (SpillOver.ENABLED) {
+				written.put(object.getId(), SpillOver.getWrittenFields(row));
+			}
+		}
+		if (updates.isEmpty()) {
+			return;
+		}
+		Map<Integer, String> failures = Collections.emptyMap();
+		Map<String, Document> spilled = Collections.emptyMap();
+		Exception error = null;
+		try {
+			MongoCollection<Document> table = getTable(appid, Operation.WRITE_BULK);
+			spilled = SpillOver.findSpilled(table, ids);
+			table.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+		} catch (Exception e) {
+			error = e;
+			failures = BulkWrites.getFailures(e, updates.size());
+		}
+		for (int i = 0; i < updated.size(); i++) {
+			String id = ids.get(i);
+			if (failures.containsKey(i)) {
+				// the object will be updated in full next time
+				DeltaUpdates.untrack(updated.get(i));
+				written.remove(id);
+				report.addFailed(id, failures.get(i), error);
+			} else {
+				report.addSucceeded(id);
+			}
+		}
+		SpillOver.deleteFiles(appid, spilled, written);
+	}
+
 	@Override
 	public <P extends ParaObject> void deleteAll(String appid, List<P> objects) {
 		if (objects == null || objects.isEmpty() || StringUtils.isBlank(appid)) {
 			return;
 		}
+		WriteBehindQueue.flush(appid);
 		try {
 			BasicDBObject query = new BasicDBObject();
 			List<String> list = new ArrayList<String>();
@@ -329,7 +783,10 @@ public class MongoDBDAO implements DAO {
 				list.add(object.getId());
 			}
 			query.put(ID, new BasicDBObject("$in", list));
-			getTable(appid).deleteMany(query);
+			MongoCollection<Document> table = getTable(appid, Operation.WRITE_BULK);
+			Map<String, Document> spilled = SpillOver.findSpilled(table, list);
+			table.deleteMany(query);
+			SpillOver.deleteFiles(appid, spilled, null);
 			logger.debug("DAO.deleteAll() {}", objects.size());
 		} catch (Exception e) {
 			logger.error(null, e);
@@ -341,19 +798,30 @@ public class MongoDBDAO implements DAO {
 	//				MISC FUNCTIONS
 	/////////////////////////////////////////////
 
-	private <P extends ParaObject> Document toRow(P so, Class<? extends Annotation> filter, boolean setNullFields) {
+	static void prepareForCreate(String appid, ParaObject so) {
+		if (StringUtils.isBlank(so.getId())) {
+			so.setId(MongoDBUtils.generateNewId());
+			logger.debug("Generated id: " + so.getId());
+		}
+		if (so.getTimestamp() == null) {
+			so.setTimestamp(Utils.timestamp());
+		}
+		so.setAppid(appid);
+	}
+
+	static <P extends ParaObject> Document toRow(P so, Class<? extends Annotation> filter, boolean setNullFields) {
 		return toRow(so, filter, setNullFields, false);
 	}
 
 	@SuppressWarnings("unchecked")
-	private <P extends ParaObject> Document toRow(P so, Class<? extends Annotation> filter,
+	static <P extends ParaObject> Document toRow(P so, Class<? extends Annotation> filter,
 			boolean setNullFields, boolean setMongoId) {
 		Document row = new Document();
 		if (so == null) {
 			return row;
 		}
 		// field values will be stored as they are - object structure and types will be preserved
-		for (Entry<String, Object> entry : ParaObjectUtils.getAnnotatedFields(so, filter, false).entrySet()) {
+		for (Entry<String, Object> entry : ParaObjectAccessors.getAnnotatedFields(so, filter).entrySet()) {
 			Object value = entry.getValue();
 			if (value != null && (!StringUtils.isBlank(value.toString()) || setNullFields)) {
 				// "id" in ParaObject is translated to "_ID" mongodb
@@ -361,9 +829,10 @@ public class MongoDBDAO implements DAO {
 					row.put(ID, value.toString());
 				} else {
 					if (value instanceof Map) {
-						row.put(sanitizeField(entry.getKey()), sanitizeFields((Map<String, Object>) value));
+						Object stored = TypedFields.toStored(entry.getKey(), sanitizeFields((Map<String, Object>) value));
+						row.put(FieldAliases.toStored(entry.getKey()), CompressedFields.compress(so.getType(), (Map<String, Object>) stored));
 					} else {
-						row.put(sanitizeField(entry.getKey()), value);
+						row.put(FieldAliases.toStored(entry.getKey()), TypedFields.toStored(entry.getKey(), value));
 					}
 				}
 				if (setMongoId) {
@@ -375,16 +844,16 @@ public class MongoDBDAO implements DAO {
 		return row;
 	}
 
-	private <P extends ParaObject> P fromRow(Document row) {
+	static <P extends ParaObject> P fromRow(Document row) {
 		return fromRow(documentToMap(row));
 	}
 
-	private <P extends ParaObject> P fromRow(Map<String, Object> row) {
-		return ParaObjectUtils.setAnnotatedFields(row);
+	static <P extends ParaObject> P fromRow(Map<String, Object> row) {
+		return ParaObjectAccessors.setAnnotatedFields(row);
 	}
 
 	@SuppressWarnings("unchecked")
-	private Map<String, Object> documentToMap(Document row) {
+	static Map<String, Object> documentToMap(Document row) {
 		if (row == null || row.isEmpty()) {
 			logger.debug("row is null or empty");
 			return Collections.emptyMap();
@@ -395,18 +864,70 @@ public class MongoDBDAO implements DAO {
 			// "_ID" mongodb is translated to "id" in ParaObject
 			if (col.getKey().equals(ID)) {
 				props.put(Config._ID, value);
+				continue;
+			}
+			String name = FieldAliases.fromStored(col.getKey());
+			if (FieldAliases.isShadowed(props, col.getKey(), name)) {
+				continue;
+			}
+			if (value instanceof Map) {
+				props.put(name, desanitizeFields((Map<String, Object>) value));
+			} else if (CompressedFields.isCompressed(value)) {
+				props.put(name, CompressedFields.expand((Binary) value, MongoClient.getDefaultCodecRegistry()));
 			} else {
-				if (value instanceof Map) {
-					props.put(desanitizeField(col.getKey()), desanitizeFields((Map<String, Object>) value));
-				} else {
-					props.put(desanitizeField(col.getKey()), value);
-				}
+				props.put(name, TypedFields.fromStored(name, value));
 			}
 		}
 		return props;
 	}
 
-	private static void throwIfNecessary(Throwable t) {
+	private static Set<String> getProjectedFieldsFromConfig() {
+		// core fields plus the configured ones, for objects of all types - "field1,field2,properties.title"
+		Set<String> fields = new LinkedHashSet<String>(CORE_FIELDS);
+		for (String param : StringUtils.split(Config.getConfigParam("mongodb.readall_projection", ""), ", |")) {
+			String field = param;
+			if (field.contains(":")) {
+				// a find() projection can't depend on the type of each document
+				logger.warn("Fields in para.mongodb.readall_projection can't be limited to a type - '{}' is read for all types.",
+						param);
+				field = StringUtils.substringAfter(param, ":");
+			}
+			if (!field.isEmpty()) {
+				fields.add(field);
+			}
+		}
+		return Collections.unmodifiableSet(fields);
+	}
+
+	/**
+	 * Returns a projection which includes only the given fields and the type.
+	 * @param fields field names or dot-separated paths to nested fields
+	 * @return a projection or null if all fields should be included
+	 */
+	static Bson getProjection(Set<String> fields) {
+		if (fields == null || fields.isEmpty()) {
+			return null;
+		}
+		List<String> names = new ArrayList<String>(fields.size());
+		for (String field : fields) {
+			if (!StringUtils.isBlank(field)) {
+				names.add(Config._ID.equals(field) ? ID : FieldAliases.toStoredPath(field));
+				String topField = StringUtils.substringBefore(field, ".");
+				if (SpillOver.ENABLED && !CORE_FIELDS.contains(topField)) {
+					// the field may have been spilled over to GridFS
+					names.add(SpillOver.SPILLED + "." + FieldAliases.toStored(topField));
+				}
+			}
+		}
+		// without the type, objects would be created as a Sysprop
+		String type = FieldAliases.toStored(Config._TYPE);
+		if (!names.contains(type)) {
+			names.add(type);
+		}
+		return Projections.include(names);
+	}
+
+	static void throwIfNecessary(Throwable t) {
 		if (t != null && Config.getConfigBoolean("fail_on_write_errors", true)) {
 			throw new RuntimeException("DAO write operation failed!", t);
 		}
@@ -418,59 +939,99 @@ public class MongoDBDAO implements DAO {
 	 * @param fieldName the old document key
 	 * @return a sanitized key
 	 */
-	String sanitizeField(String fieldName) {
+	static String sanitizeField(String fieldName) {
 		if (!StringUtils.contains(fieldName, ".") && !StringUtils.startsWith(fieldName, "$")) {
 			return fieldName;
 		}
-		String b = "Base64:" + fieldName.replaceAll("^\\$+", "").replaceAll("\\.", "_") + ":" +
-				Utils.base64enc(fieldName.getBytes(UTF_8));
+		String b = SANITIZED_FIELDS.get(fieldName);
+		if (b == null) {
+			b = FIELD_NAME_ENCODING_PREFIX + DOT_PATTERN.matcher(LEADING_DOLLARS_PATTERN.matcher(fieldName).
+					replaceFirst("")).replaceAll("_") + ":" + Utils.base64enc(fieldName.getBytes(UTF_8));
+			cacheFieldName(SANITIZED_FIELDS, fieldName, b);
+		}
 		return b;
 	}
 
-	String desanitizeField(String fieldName) {
-		if (fieldName != null) {
+	static String desanitizeField(String fieldName) {
+		// most field names aren't encoded, so the regex is skipped for them
+		if (fieldName != null && fieldName.startsWith(FIELD_NAME_ENCODING_PREFIX)) {
+			String decoded = DESANITIZED_FIELDS.get(fieldName);
+			if (decoded != null) {
+				return decoded;
+			}
 			Matcher m = FIELD_NAME_ENCODING_PATTERN.matcher(fieldName);
 			if (m.matches()) {
-				return Utils.base64dec(m.group(1));
+				decoded = Utils.base64dec(m.group(1));
+				cacheFieldName(DESANITIZED_FIELDS, fieldName, decoded);
+				return decoded;
 			}
 		}
 		return fieldName;
 	}
 
-		@SuppressWarnings("unchecked")
-	Map<String, Object> sanitizeFields(Map<String, Object> row) {
-		if (row != null) {
-			Map<String, Object> cleanRow = new HashMap<String, Object>(row.size());
-			for (Entry<String, Object> entry : row.entrySet()) {
-				String key = entry.getKey();
-				Object value = entry.getValue();
-				if (value instanceof Map) {
-					cleanRow.put(sanitizeField(key), sanitizeFields((Map<String, Object>) value));
-				} else {
-					cleanRow.put(sanitizeField(key), value);
-				}
-			}
-			return cleanRow;
+	private static void cacheFieldName(Map<String, String> cache, String key, String value) {
+		if (FIELD_NAME_CACHE_SIZE <= 0 || value == null) {
+			return;
+		}
+		// keep the cache bounded - when it fills up, start over
+		if (cache.size() >= FIELD_NAME_CACHE_SIZE) {
+			cache.clear();
 		}
-		return null;
+		cache.put(key, value);
+	}
+
+	/**
+	 * Sanitizes all keys of a map, recursively. Maps are only copied if some of their keys,
+	 * or the keys of a nested map, need to be rewritten - otherwise the same map is returned.
+	 * @param row a map
+	 * @return a map with sanitized keys
+	 */
+	static Map<String, Object> sanitizeFields(Map<String, Object> row) {
+		return rewriteFields(row, true);
+	}
+
+	/**
+	 * Reverses {@link #sanitizeFields(java.util.Map)}. Maps are only copied if some of their keys,
+	 * or the keys of a nested map, need to be rewritten - otherwise the same map is returned.
+	 * @param row a map
+	 * @return a map with the original keys
+	 */
+	static Map<String, Object> desanitizeFields(Map<String, Object> row) {
+		return rewriteFields(row, false);
 	}
 
 	@SuppressWarnings("unchecked")
-	Map<String, Object> desanitizeFields(Map<String, Object> row) {
-		if (row != null) {
-			Map<String, Object> cleanRow = new HashMap<String, Object>(row.size());
-			for (Entry<String, Object> entry : row.entrySet()) {
-				String key = entry.getKey();
-				Object value = entry.getValue();
-				if (value instanceof Map) {
-					cleanRow.put(desanitizeField(key), desanitizeFields((Map<String, Object>) value));
-				} else {
-					cleanRow.put(desanitizeField(key), value);
-				}
+	private static Map<String, Object> rewriteFields(Map<String, Object> row, boolean sanitize) {
+		if (row == null) {
+			return null;
+		}
+		Map<String, Object> cleanRow = null;
+		int index = 0;
+		for (Entry<String, Object> entry : row.entrySet()) {
+			String key = entry.getKey();
+			Object value = entry.getValue();
+			String newKey = sanitize ? sanitizeField(key) : desanitizeField(key);
+			Object newValue = (value instanceof Map) ? rewriteFields((Map<String, Object>) value, sanitize) : value;
+			// unchanged keys and maps are returned as they are, so a copy is made only on the first change
+			if (cleanRow == null && (newKey != key || newValue != value)) {
+				cleanRow = copyFirstEntries(row, index);
+			}
+			if (cleanRow != null) {
+				cleanRow.put(newKey, newValue);
 			}
-			return cleanRow;
+			index++;
+		}
+		return (cleanRow == null) ? row : cleanRow;
+	}
+
+	private static Map<String, Object> copyFirstEntries(Map<String, Object> row, int count) {
+		Map<String, Object> copy = new HashMap<String, Object>(row.size());
+		Iterator<Entry<String, Object>> entries = row.entrySet().iterator();
+		for (int i = 0; i < count && entries.hasNext(); i++) {
+			Entry<String, Object> entry = entries.next();
+			copy.put(entry.getKey(), entry.getValue());
 		}
-		return null;
+		return copy;
 	}
 
 	//////////////////////////////////////////////////////
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.event.ConnectionAddedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolListenerAdapter;
+import com.mongodb.event.ConnectionRemovedEvent;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.bson.BsonValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listens for command and connection pool events from the MongoDB driver and forwards them to a {@link MongoDBMetricsSink}.
+ * The time spent waiting for a pooled connection is measured with the wait queue events, which are the only
+ * check-out events in the 3.x driver, and only for the synchronous client. The asynchronous client waits for
+ * connections on the driver's own threads, so its wait time is reported as unknown.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class MongoDBMetricsListener extends ConnectionPoolListenerAdapter implements CommandListener {
+
+	private static final Logger logger = LoggerFactory.getLogger(MongoDBMetricsListener.class);
+
+	private final String cluster;
+	private final MongoDBMetricsSink sink;
+	// request id -> collection name, for commands in flight
+	private final Map<Integer, String> collections = new ConcurrentHashMap<Integer, String>();
+	// the sync driver enters the wait queue, checks out a connection and exits the queue on the calling thread
+	private final ThreadLocal<Long> waitStart = new ThreadLocal<Long>();
+	private final boolean sync;
+
+	MongoDBMetricsListener(String cluster, MongoDBMetricsSink sink, boolean sync) {
+		this.cluster = cluster;
+		this.sink = sink;
+		this.sync = sync;
+	}
+
+	@Override
+	public void commandStarted(CommandStartedEvent event) {
+		BsonValue collection = event.getCommand().get(event.getCommandName());
+		if (collection != null && collection.isString()) {
+			collections.put(event.getRequestId(), collection.asString().getValue());
+		}
+	}
+
+	@Override
+	public void commandSucceeded(CommandSucceededEvent event) {
+		record(event.getRequestId(), event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS), true);
+	}
+
+	@Override
+	public void commandFailed(CommandFailedEvent event) {
+		record(event.getRequestId(), event.getCommandName(), event.getElapsedTime(TimeUnit.NANOSECONDS), false);
+	}
+
+	private void record(int requestId, String command, long elapsedNanos, boolean success) {
+		try {
+			sink.commandCompleted(cluster, command, collections.remove(requestId), elapsedNanos, success);
+		} catch (Exception e) {
+			logger.debug("Failed to record MongoDB command metrics: {}", e.getMessage());
+		}
+	}
+
+	@Override
+	@SuppressWarnings("deprecation")
+	public void waitQueueEntered(com.mongodb.event.ConnectionPoolWaitQueueEnteredEvent event) {
+		if (sync) {
+			waitStart.set(System.nanoTime());
+		}
+	}
+
+	@Override
+	@SuppressWarnings("deprecation")
+	public void waitQueueExited(com.mongodb.event.ConnectionPoolWaitQueueExitedEvent event) {
+		// a check-out which timed out or failed leaves no start time behind for the next one
+		waitStart.remove();
+	}
+
+	@Override
+	public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+		Long start = waitStart.get();
+		waitStart.remove();
+		// without a start time, the wait isn't sampled
+		sink.connectionCheckedOut(cluster, (start == null) ? -1 : System.nanoTime() - start);
+	}
+
+	@Override
+	public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+		sink.connectionCheckedIn(cluster);
+	}
+
+	@Override
+	public void connectionAdded(ConnectionAddedEvent event) {
+		sink.connectionAdded(cluster);
+	}
+
+	@Override
+	public void connectionRemoved(ConnectionRemovedEvent event) {
+		sink.connectionRemoved(cluster);
+	}
+}
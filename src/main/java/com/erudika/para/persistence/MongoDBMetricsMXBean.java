@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import java.util.Map;
+
+/**
+ * MongoDB driver metrics for a single cluster, exposed through JMX by {@link JmxMetricsSink}.
+ * Command metrics are keyed by "{command}" and "{command}:{collection}". Latencies are in milliseconds.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public interface MongoDBMetricsMXBean {
+
+	/**
+	 * @return the number of completed commands
+	 */
+	Map<String, Long> getCommandCounts();
+
+	/**
+	 * @return the number of failed commands
+	 */
+	Map<String, Long> getCommandErrors();
+
+	/**
+	 * @return the mean command latency
+	 */
+	Map<String, Double> getCommandLatencyMean();
+
+	/**
+	 * @return the 50th percentile of command latency
+	 */
+	Map<String, Double> getCommandLatencyP50();
+
+	/**
+	 * @return the 99th percentile of command latency
+	 */
+	Map<String, Double> getCommandLatencyP99();
+
+	/**
+	 * @return the number of connections currently checked out of the pool
+	 */
+	long getCheckedOutConnections();
+
+	/**
+	 * @return the number of open connections
+	 */
+	long getOpenConnections();
+
+	/**
+	 * @return the total number of connections opened so far
+	 */
+	long getConnectionsAdded();
+
+	/**
+	 * @return the total number of connections closed so far
+	 */
+	long getConnectionsRemoved();
+
+	/**
+	 * @return the mean time spent waiting for a connection from the pool
+	 */
+	double getPoolWaitMean();
+
+	/**
+	 * @return the 99th percentile of the time spent waiting for a connection from the pool
+	 */
+	double getPoolWaitP99();
+
+	/**
+	 * Resets all counters and histograms, except for the connection gauges.
+	 */
+	void reset();
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+/**
+ * Receives metrics from the MongoDB driver. Implementations must be thread-safe and fast,
+ * because they are called on the driver's threads for every command and connection checkout.
+ * A custom sink can be set with {@code para.mongodb.metrics.sink}, the default one is {@link JmxMetricsSink}.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public interface MongoDBMetricsSink {
+
+	/**
+	 * Called when a command completes.
+	 * @param cluster the name of the cluster
+	 * @param command the command name, e.g. "find" or "insert"
+	 * @param collection the collection name or null if the command isn't for a specific collection
+	 * @param elapsedNanos the time it took to execute the command, including the round trip
+	 * @param success false if the command failed
+	 */
+	void commandCompleted(String cluster, String command, String collection, long elapsedNanos, boolean success);
+
+	/**
+	 * Called when a connection is checked out of the pool.
+	 * @param cluster the name of the cluster
+	 * @param waitNanos the time spent waiting for a connection, or -1 if unknown
+	 */
+	void connectionCheckedOut(String cluster, long waitNanos);
+
+	/**
+	 * Called when a connection is returned to the pool.
+	 * @param cluster the name of the cluster
+	 */
+	void connectionCheckedIn(String cluster);
+
+	/**
+	 * Called when a new connection is opened.
+	 * @param cluster the name of the cluster
+	 */
+	void connectionAdded(String cluster);
+
+	/**
+	 * Called when a connection is closed.
+	 * @param cluster the name of the cluster
+	 */
+	void connectionRemoved(String cluster);
+
+}
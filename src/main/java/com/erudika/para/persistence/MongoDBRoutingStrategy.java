@@ -0,0 +1,37 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import java.util.List;
+
+/**
+ * Decides which MongoDB cluster an app is stored in. Apps which are explicitly mapped to a cluster
+ * with {@code para.mongodb.routing.placement} are never passed to the strategy.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public interface MongoDBRoutingStrategy {
+
+	/**
+	 * Picks a cluster for an app.
+	 * @param appid the app identifier
+	 * @param clusters the names of all configured clusters, the first one is always the default cluster
+	 * @return the name of a cluster from the list
+	 */
+	String route(String appid, List<String> clusters);
+
+}
@@ -17,23 +17,48 @@
  */
 package com.erudika.para.persistence;
 
+import com.erudika.para.AppCreatedListener;
+import com.erudika.para.AppDeletedListener;
 import com.erudika.para.DestroyListener;
 import com.erudika.para.Para;
 import com.erudika.para.core.App;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.erudika.para.utils.Config;
-import com.mongodb.MongoClient;
-import com.mongodb.MongoClientOptions;
-import com.mongodb.MongoClientURI;
-import com.mongodb.MongoCredential;
-import com.mongodb.ServerAddress;
+import com.mongodb.ReadPreference;
+import com.mongodb.TagSet;
+import com.mongodb.WriteConcern;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.MongoIterable;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 import javax.inject.Singleton;
 
@@ -45,75 +70,377 @@ import javax.inject.Singleton;
 public final class MongoDBUtils {
 
 	private static final Logger logger = LoggerFactory.getLogger(MongoDBUtils.class);
-	private static MongoClient mongodbClient;
-	private static MongoDatabase mongodb;
-	private static final String DBURI = Config.getConfigParam("mongodb.uri", "");
-	private static final String DBHOST = Config.getConfigParam("mongodb.host", "localhost");
-	private static final int DBPORT = Config.getConfigInt("mongodb.port", 27017);
-	private static final boolean SSL = Config.getConfigBoolean("mongodb.ssl_enabled", false);
-	private static final boolean SSL_ALLOW_ALL = Config.getConfigBoolean("mongodb.ssl_allow_all", false);
-	private static final String DBNAME = Config.getConfigParam("mongodb.database", Config.getRootAppIdentifier());
-	private static final String DBUSER = Config.getConfigParam("mongodb.user", "");
-	private static final String DBPASS = Config.getConfigParam("mongodb.password", "");
+	// the smallest max staleness allowed by MongoDB
+	private static final int MIN_STALENESS_SEC = 90;
+	// invalid read settings which were already logged - they are read again each time a table is returned
+	private static final Set<String> INVALID_READ_SETTINGS = ConcurrentHashMap.newKeySet();
+	private static volatile boolean rootTableChecked = false;
+	private static final AtomicBoolean WARMED_UP = new AtomicBoolean(false);
+	private static final AtomicBoolean DAO_INITIALIZED = new AtomicBoolean(false);
+	private static boolean destroyListenerAdded = false;
+	private static final Map<String, MongoCollection<Document>> TABLES =
+			new ConcurrentHashMap<String, MongoCollection<Document>>();
+	private static final Map<String, Map<Operation, MongoCollection<Document>>> OPERATION_TABLES =
+			new ConcurrentHashMap<String, Map<Operation, MongoCollection<Document>>>();
+	private static final Map<String, Map<Operation, com.mongodb.reactivestreams.client.MongoCollection<Document>>> ASYNC_TABLES =
+			new ConcurrentHashMap<String, Map<Operation, com.mongodb.reactivestreams.client.MongoCollection<Document>>>();
+	private static ScheduledFuture<?> knownTablesRefreshTask;
+	private static MongoDBMetricsSink metricsSink;
+	private static boolean metricsSinkLoaded = false;
+	private static final int TABLES_REFRESH_INTERVAL_SEC = Config.getConfigInt("mongodb.tables_refresh_interval_sec", 0);
+
+	// routing of apps to clusters
+	private static final Map<String, MongoDBCluster> CLUSTERS = getClustersFromConfig();
+	private static final List<String> CLUSTER_NAMES = Collections.unmodifiableList(new ArrayList<String>(CLUSTERS.keySet()));
+	private static final Map<String, String> PLACEMENT = getPlacementFromConfig();
+	private static final MongoDBRoutingStrategy ROUTING_STRATEGY = getRoutingStrategyFromConfig();
+	private static final Map<String, MongoDBCluster> ROUTES = new ConcurrentHashMap<String, MongoDBCluster>();
 
 	private MongoDBUtils() { }
 
+	/**
+	 * The kinds of DAO operations which can have their own read preference or write concern.
+	 */
+	public enum Operation {
+		/**
+		 * Point reads of a single object.
+		 */
+		READ("read_preference_point"),
+		/**
+		 * Batch reads of objects by id.
+		 */
+		READ_BATCH("read_preference_batch"),
+		/**
+		 * Page scans over a whole table.
+		 */
+		READ_PAGE("read_preference_page"),
+		/**
+		 * Writes of a single object.
+		 */
+		WRITE("write_concern_single"),
+		/**
+		 * Bulk updates and deletes.
+		 */
+		WRITE_BULK("write_concern_bulk"),
+		/**
+		 * Bulk inserts, e.g. imports.
+		 */
+		WRITE_IMPORT("write_concern_import");
+
+		private final String configKey;
+
+		Operation(String configKey) {
+			this.configKey = configKey;
+		}
+
+		/**
+		 * @return the config key suffix for this operation, e.g. "read_preference_page"
+		 */
+		public String getConfigKey() {
+			return configKey;
+		}
+
+		/**
+		 * @return true if this is a read operation
+		 */
+		public boolean isRead() {
+			return configKey.startsWith("read_");
+		}
+	}
+
 	/**
 	 * Returns a client instance for MongoDB.
-	 * @return a client that talks to MongoDB
+	 * The client is created only once, the first time this method is called.
+	 * @return a client that talks to MongoDB, connected to the cluster of the root app
 	 */
 	public static MongoDatabase getClient() {
-		if (mongodb != null) {
-			return mongodb;
+		return getClient(Config.getRootAppIdentifier());
+	}
+
+	/**
+	 * Returns a client instance for MongoDB, connected to the cluster where a given app is stored.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return a client that talks to MongoDB
+	 */
+	public static MongoDatabase getClient(String appid) {
+		MongoDatabase db = getCluster(appid).getDatabase();
+		if (!rootTableChecked) {
+			initRootTable();
 		}
+		return db;
+	}
 
-		MongoClientOptions options = MongoClientOptions.builder().
-				sslEnabled(SSL).sslInvalidHostNameAllowed(SSL_ALLOW_ALL).build();
+	private static synchronized void initRootTable() {
+		if (rootTableChecked) {
+			return;
+		}
+		rootTableChecked = true;
+		if (!existsTable(Config.getRootAppIdentifier())) {
+			createTable(Config.getRootAppIdentifier());
+		}
+		if (!destroyListenerAdded) {
+			destroyListenerAdded = true;
+			Para.addDestroyListener(new DestroyListener() {
+				public void onDestroy() {
+					shutdownClient();
+				}
+			});
+		}
+	}
 
-		if (!StringUtils.isBlank(DBURI)) {
-			logger.info("MongoDB uri: " + DBURI.replaceAll("mongodb://.*@", "mongodb://<user:password>@") + ", database: " + DBNAME);
-			MongoClientURI uri = new MongoClientURI(DBURI, new MongoClientOptions.Builder(options));
-			mongodbClient = new MongoClient(uri);
-		} else {
-			logger.info("MongoDB host: " + DBHOST + ":" + DBPORT + ", database: " + DBNAME);
-			ServerAddress s = new ServerAddress(DBHOST, DBPORT);
+	/**
+	 * Stops the client and releases resources.
+	 * You can tell Para to call this on shutdown using {@code Para.addDestroyListener()}
+	 */
+	public static synchronized void shutdownClient() {
+		for (MongoDBCluster cluster : CLUSTERS.values()) {
+			cluster.shutdown();
+		}
+		TABLES.clear();
+		OPERATION_TABLES.clear();
+		ASYNC_TABLES.clear();
+		rootTableChecked = false;
+		WARMED_UP.set(false);
+		if (knownTablesRefreshTask != null) {
+			knownTablesRefreshTask.cancel(false);
+			knownTablesRefreshTask = null;
+		}
+	}
 
-			if (!StringUtils.isBlank(DBUSER) && !StringUtils.isBlank(DBPASS)) {
-				MongoCredential credential = MongoCredential.createCredential(DBUSER, DBNAME, DBPASS.toCharArray());
-				mongodbClient = new MongoClient(s, credential, options);
-			} else {
-				mongodbClient = new MongoClient(s, options);
+	/**
+	 * Prepares the clients for traffic, if enabled with {@code para.mongodb.warmup.enabled}. For each cluster,
+	 * this connects to the deployment, opens the minimum number of pooled connections ({@code para.mongodb.pool.min_size})
+	 * and then primes the collection handles and table names for the apps listed in {@code para.mongodb.warmup.apps}
+	 * and/or the {@code para.mongodb.warmup.top_apps} largest apps. This is done only once.
+	 */
+	public static void warmUp() {
+		if (!Config.getConfigBoolean("mongodb.warmup.enabled", false) || !WARMED_UP.compareAndSet(false, true)) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		for (MongoDBCluster cluster : CLUSTERS.values()) {
+			warmUpConnections(cluster);
+		}
+		Set<String> apps = new LinkedHashSet<String>();
+		apps.add(Config.getRootAppIdentifier());
+		apps.addAll(Arrays.asList(StringUtils.split(Config.getConfigParam("mongodb.warmup.apps", ""), ", ")));
+		apps.addAll(getLargestApps(Config.getConfigInt("mongodb.warmup.top_apps", 0)));
+		for (String appid : apps) {
+			try {
+				existsTable(appid);
+				getTable(appid);
+				for (Operation op : Operation.values()) {
+					getTable(appid, op);
+				}
+			} catch (Exception e) {
+				logger.warn("Failed to warm up MongoDB table for app '{}': {}", appid, e.getMessage());
 			}
 		}
+		logger.info("MongoDB warm-up completed in {}ms - {} clusters, {} apps.",
+				System.currentTimeMillis() - start, CLUSTERS.size(), apps.size());
+	}
 
-		mongodb = mongodbClient.getDatabase(DBNAME);
+	/**
+	 * Sets up automatic table creation and deletion, warms up the clients and loads the field alias dictionary.
+	 * Called by the constructors of both DAOs, but only the first call does anything.
+	 */
+	static void initDAO() {
+		if (!DAO_INITIALIZED.compareAndSet(false, true)) {
+			return;
+		}
+		// set up automatic table creation and deletion
+		App.addAppCreatedListener(new AppCreatedListener() {
+			public void onAppCreated(App app) {
+				if (app != null && !app.isSharingTable()) {
+					createTable(app.getAppIdentifier());
+				}
+			}
+		});
+		App.addAppDeletedListener(new AppDeletedListener() {
+			public void onAppDeleted(App app) {
+				if (app != null) {
+					if (!app.isSharingTable()) {
+						deleteTable(app.getAppIdentifier());
+					}
+					evictTable(app.getAppIdentifier());
+				}
+			}
+		});
+		// optionally open connections and prime collection handles before the first request
+		warmUp();
+		// the field alias dictionary is loaded up front, if enabled
+		FieldAliases.init();
+	}
 
-		if (!existsTable(Config.getRootAppIdentifier())) {
-			createTable(Config.getRootAppIdentifier());
+	private static void warmUpConnections(MongoDBCluster cluster) {
+		try {
+			final MongoDatabase db = cluster.getDatabase();
+			// the first command waits for server discovery, after which the driver monitors every host
+			db.runCommand(new Document("ping", 1), ReadPreference.primaryPreferred());
+			// concurrent commands force the pool to open that many connections
+			int minSize = cluster.getInt("pool.min_size", 0);
+			List<CompletableFuture<Void>> pings = new ArrayList<CompletableFuture<Void>>(minSize);
+			for (int i = 0; i < minSize; i++) {
+				pings.add(CompletableFuture.runAsync(() -> db.runCommand(new Document("ping", 1)), Para.getExecutorService()));
+			}
+			CompletableFuture.allOf(pings.toArray(new CompletableFuture<?>[0])).join();
+			logger.debug("MongoDB cluster '{}' is warmed up with {} connections.", cluster.getName(), minSize);
+		} catch (Exception e) {
+			logger.warn("Failed to warm up MongoDB cluster '{}': {}", cluster.getName(), e.getMessage());
 		}
+	}
 
-		Para.addDestroyListener(new DestroyListener() {
-			public void onDestroy() {
-				shutdownClient();
+	private static List<String> getLargestApps(int count) {
+		if (count <= 0) {
+			return Collections.emptyList();
+		}
+		final Map<String, Long> sizes = new HashMap<String, Long>();
+		for (MongoDBCluster cluster : CLUSTERS.values()) {
+			try {
+				loadKnownTables(cluster);
+				for (String table : cluster.getKnownTables()) {
+					// estimated counts are read from the collection metadata and don't scan the collection
+					long size = cluster.getDatabase().getCollection(table).estimatedDocumentCount();
+					sizes.put(StringUtils.removeStart(table, Config.PARA + "-"), size);
+				}
+			} catch (Exception e) {
+				logger.warn("Failed to get table sizes in MongoDB cluster '{}': {}", cluster.getName(), e.getMessage());
 			}
-		});
+		}
+		List<String> apps = new ArrayList<String>(sizes.keySet());
+		apps.sort((a, b) -> Long.compare(sizes.get(b), sizes.get(a)));
+		return apps.subList(0, Math.min(count, apps.size()));
+	}
 
-		return mongodb;
+	/**
+	 * Returns the sink for driver metrics, if metrics are enabled with {@code para.mongodb.metrics.enabled}.
+	 * The sink is {@link JmxMetricsSink} unless {@code para.mongodb.metrics.sink} is set to the fully qualified
+	 * name of another {@link MongoDBMetricsSink} implementation.
+	 * @return the metrics sink or null if metrics are disabled
+	 */
+	public static synchronized MongoDBMetricsSink getMetricsSink() {
+		if (metricsSinkLoaded) {
+			return metricsSink;
+		}
+		metricsSinkLoaded = true;
+		if (Config.getConfigBoolean("mongodb.metrics.enabled", false)) {
+			String sink = Config.getConfigParam("mongodb.metrics.sink", "");
+			if (StringUtils.isBlank(sink) || "jmx".equalsIgnoreCase(sink)) {
+				metricsSink = new JmxMetricsSink();
+			} else {
+				try {
+					metricsSink = (MongoDBMetricsSink) Class.forName(sink, true, Para.getParaClassLoader()).
+							getConstructor().newInstance();
+				} catch (Exception e) {
+					logger.error("Failed to load MongoDB metrics sink '" + sink + "', using JMX instead.", e);
+					metricsSink = new JmxMetricsSink();
+				}
+			}
+		}
+		return metricsSink;
 	}
 
 	/**
-	 * Stops the client and releases resources.
-	 * You can tell Para to call this on shutdown using {@code Para.addDestroyListener()}
+	 * Returns the cluster where a given app is stored. Apps are routed with the explicit mapping
+	 * in {@code para.mongodb.routing.placement} first, then with the configured routing strategy.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return a cluster, never null
 	 */
-	public static void shutdownClient() {
-		if (mongodbClient != null) {
-			mongodbClient.close();
-			mongodbClient = null;
+	static MongoDBCluster getCluster(String appid) {
+		MongoDBCluster defaultCluster = CLUSTERS.get(MongoDBCluster.DEFAULT);
+		if (StringUtils.isBlank(appid) || CLUSTERS.size() == 1) {
+			return defaultCluster;
+		}
+		MongoDBCluster cluster = ROUTES.get(appid);
+		if (cluster == null) {
+			String name = PLACEMENT.get(appid);
+			if (name == null && ROUTING_STRATEGY != null) {
+				name = ROUTING_STRATEGY.route(appid, CLUSTER_NAMES);
+			}
+			cluster = (name != null && CLUSTERS.containsKey(name)) ? CLUSTERS.get(name) : defaultCluster;
+			ROUTES.put(appid, cluster);
+			logger.debug("App '{}' is routed to MongoDB cluster '{}'.", appid, cluster.getName());
 		}
+		return cluster;
+	}
+
+	/**
+	 * Returns the names of all MongoDB clusters, the first one is always the default cluster.
+	 * @return a list of cluster names
+	 */
+	public static List<String> getClusterNames() {
+		return CLUSTER_NAMES;
+	}
+
+	/**
+	 * Returns a collection with the same name in the database of each cluster, e.g. for metadata which must be
+	 * stored next to the data of each cluster.
+	 * @param name the collection name
+	 * @return a list of collections, the first one is always in the default cluster
+	 */
+	static List<MongoCollection<Document>> getCollectionInAllClusters(String name) {
+		List<MongoCollection<Document>> tables = new ArrayList<MongoCollection<Document>>(CLUSTERS.size());
+		for (MongoDBCluster cluster : CLUSTERS.values()) {
+			tables.add(cluster.getDatabase().getCollection(name));
+		}
+		return tables;
+	}
+
+	/**
+	 * Checks if the servers of the cluster where a given app is stored are reachable.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return true if at least one server of the cluster is reachable
+	 */
+	public static boolean isHealthy(String appid) {
+		return getCluster(appid).isHealthy();
+	}
+
+	private static Map<String, MongoDBCluster> getClustersFromConfig() {
+		Map<String, MongoDBCluster> clusters = new LinkedHashMap<String, MongoDBCluster>();
+		clusters.put(MongoDBCluster.DEFAULT, new MongoDBCluster(MongoDBCluster.DEFAULT));
+		for (String name : StringUtils.split(Config.getConfigParam("mongodb.clusters", ""), ", ")) {
+			if (!clusters.containsKey(name)) {
+				clusters.put(name, new MongoDBCluster(name));
+			}
+		}
+		return Collections.unmodifiableMap(clusters);
+	}
+
+	private static Map<String, String> getPlacementFromConfig() {
+		// "app1:cluster1,app2:cluster2"
+		Map<String, String> placement = new HashMap<String, String>();
+		for (String pair : StringUtils.split(Config.getConfigParam("mongodb.routing.placement", ""), ", ")) {
+			String appid = StringUtils.substringBefore(pair, ":");
+			String cluster = StringUtils.substringAfter(pair, ":");
+			if (!StringUtils.isBlank(appid) && !StringUtils.isBlank(cluster)) {
+				placement.put(appid, cluster);
+				if (!CLUSTERS.containsKey(cluster)) {
+					logger.warn("App '{}' is mapped to an unknown MongoDB cluster '{}'.", appid, cluster);
+				}
+			}
+		}
+		return Collections.unmodifiableMap(placement);
+	}
+
+	private static MongoDBRoutingStrategy getRoutingStrategyFromConfig() {
+		String strategy = Config.getConfigParam("mongodb.routing.strategy", "");
+		if (StringUtils.isBlank(strategy) || MongoDBCluster.DEFAULT.equalsIgnoreCase(strategy)) {
+			return null;
+		} else if ("hash".equalsIgnoreCase(strategy)) {
+			return new ConsistentHashRoutingStrategy();
+		}
+		try {
+			return (MongoDBRoutingStrategy) Class.forName(strategy, true, Para.getParaClassLoader()).
+					getConstructor().newInstance();
+		} catch (Exception e) {
+			logger.error("Failed to load MongoDB routing strategy '" + strategy + "'.", e);
+		}
+		return null;
 	}
 
 	/**
 	 * Checks if the main table exists in the database.
+	 * Known table names are cached in memory and only unknown names are looked up on the server.
 	 * @param appid name of the {@link com.erudika.para.core.App}
 	 * @return true if the table exists
 	 */
@@ -122,12 +449,18 @@ public final class MongoDBUtils {
 			return false;
 		}
 		try {
-			appid = getTableNameForAppid(appid);
-			MongoIterable<String> collectionNames = getClient().listCollectionNames();
-			for (final String name : collectionNames) {
-				if (name.equalsIgnoreCase(appid)) {
-					return true;
-				}
+			String table = getTableNameForAppid(appid);
+			MongoDBCluster cluster = getCluster(appid);
+			loadKnownTables(cluster);
+			if (cluster.getKnownTables().contains(table.toLowerCase())) {
+				return true;
+			}
+			// the table might have been created by another node
+			Document found = getClient(appid).listCollections().
+					filter(Filters.regex("name", "^" + Pattern.quote(table) + "$", "i")).first();
+			if (found != null) {
+				cluster.getKnownTables().add(table.toLowerCase());
+				return true;
 			}
 			return false;
 		} catch (Exception e) {
@@ -135,6 +468,51 @@ public final class MongoDBUtils {
 		}
 	}
 
+	private static void loadKnownTables(MongoDBCluster cluster) {
+		if (cluster.isKnownTablesLoaded()) {
+			return;
+		}
+		synchronized (cluster) {
+			if (!cluster.isKnownTablesLoaded()) {
+				refreshKnownTables(cluster);
+				cluster.setKnownTablesLoaded(true);
+			}
+		}
+		synchronized (MongoDBUtils.class) {
+			if (TABLES_REFRESH_INTERVAL_SEC > 0 && knownTablesRefreshTask == null) {
+				knownTablesRefreshTask = Para.asyncExecutePeriodically(new Runnable() {
+					public void run() {
+						for (MongoDBCluster c : CLUSTERS.values()) {
+							if (c.isKnownTablesLoaded()) {
+								refreshKnownTables(c);
+							}
+						}
+					}
+				}, TABLES_REFRESH_INTERVAL_SEC, TABLES_REFRESH_INTERVAL_SEC, TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Reloads the names of all Para tables in a cluster into the in-memory cache.
+	 * @param cluster a cluster
+	 */
+	static void refreshKnownTables(MongoDBCluster cluster) {
+		try {
+			Set<String> tables = new HashSet<String>();
+			for (Document collection : cluster.getDatabase().listCollections().filter(Filters.or(
+					Filters.eq("name", getTableNameForAppid(Config.getRootAppIdentifier())),
+					Filters.regex("name", "^" + Pattern.quote(Config.PARA + "-"))))) {
+				tables.add(collection.getString("name").toLowerCase());
+			}
+			cluster.getKnownTables().retainAll(tables);
+			cluster.getKnownTables().addAll(tables);
+			logger.debug("Found {} MongoDB tables in cluster '{}'.", tables.size(), cluster.getName());
+		} catch (Exception e) {
+			logger.error("Failed to list MongoDB tables in cluster '" + cluster.getName() + "'.", e);
+		}
+	}
+
 	/**
 	 * Creates a table in MongoDB.
 	 * @param appid name of the {@link com.erudika.para.core.App}
@@ -146,7 +524,8 @@ public final class MongoDBUtils {
 		}
 		try {
 			String table = getTableNameForAppid(appid);
-			getClient().createCollection(table);
+			getClient(appid).createCollection(table);
+			getCluster(appid).getKnownTables().add(table.toLowerCase());
 			// *** Don't need to create a secondary index here until when will be developed a full "Search" implementation for MongoDB ***
 			// create a default seconday index for parentid field as string
 			// getClient().getCollection(appid).createIndex(Indexes.text(Config._PARENTID));
@@ -172,6 +551,8 @@ public final class MongoDBUtils {
 			if (collection != null) {
 				collection.drop();
 			}
+			getCluster(appid).getKnownTables().remove(getTableNameForAppid(appid).toLowerCase());
+			evictTable(appid);
 			logger.info("Deleted MongoDB table '{}'.", getTableNameForAppid(appid));
 		} catch (Exception e) {
 			logger.error(null, e);
@@ -199,19 +580,339 @@ public final class MongoDBUtils {
 	}
 
 	/**
-	 * Get the mongodb table requested.
+	 * Rewrites all documents of an app in the typed storage format - numbers in the configured numeric fields become
+	 * Int64 or Double and the date fields become BSON dates or numbers, depending on {@code para.mongodb.typed_storage.*}.
+	 * Only the fields which need to change are updated. This is meant to be run once, after typed storage
+	 * is enabled (or the date setting is changed), and it is safe to run again.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return the number of updated documents or -1 on error
+	 */
+	public static long migrateToTypedStorage(String appid) {
+		if (StringUtils.isBlank(appid)) {
+			return -1;
+		}
+		long updated = 0;
+		int batchSize = Config.getConfigInt("mongodb.typed_storage.migration_batch_size", 500);
+		try {
+			MongoCollection<Document> table = getTable(appid, Operation.WRITE_BULK);
+			List<WriteModel<Document>> batch = new ArrayList<WriteModel<Document>>(batchSize);
+			try (MongoCursor<Document> cursor = table.find().batchSize(batchSize).iterator()) {
+				while (cursor.hasNext()) {
+					Document row = cursor.next();
+					Document changed = TypedFields.getMigratedFields(row);
+					if (!changed.isEmpty()) {
+						batch.add(new UpdateOneModel<Document>(Filters.eq(MongoDBDAO.ID, row.get(MongoDBDAO.ID)),
+								new Document("$set", changed)));
+					}
+					if (batch.size() >= batchSize) {
+						updated += table.bulkWrite(batch, new BulkWriteOptions().ordered(false)).getModifiedCount();
+						batch.clear();
+					}
+				}
+			}
+			if (!batch.isEmpty()) {
+				updated += table.bulkWrite(batch, new BulkWriteOptions().ordered(false)).getModifiedCount();
+			}
+			logger.info("Migrated {} documents in table '{}' to typed storage.", updated, getTableNameForAppid(appid));
+		} catch (Exception e) {
+			logger.error(null, e);
+			return -1;
+		}
+		return updated;
+	}
+
+	/**
+	 * Renames the top-level fields of all documents of an app to their short aliases, as defined by the
+	 * field alias dictionary (see {@code para.mongodb.field_aliases.*}). Documents which already have a field
+	 * under both names keep the value of the alias. This is meant to be run once, after aliases are enabled
+	 * or new aliases are added, and it is safe to run again.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @return the number of updated documents or -1 on error
+	 */
+	public static long migrateToFieldAliases(String appid) {
+		if (StringUtils.isBlank(appid) || !FieldAliases.ENABLED) {
+			return -1;
+		}
+		try {
+			MongoCollection<Document> table = getTable(appid, Operation.WRITE_BULK);
+			Map<String, String> aliases = FieldAliases.getAliases();
+			List<Bson> unmigrated = new ArrayList<Bson>(aliases.size());
+			Document rename = new Document();
+			for (Entry<String, String> alias : aliases.entrySet()) {
+				String field = MongoDBDAO.sanitizeField(alias.getKey());
+				// the full name is stale if the document was updated after aliases were enabled
+				table.updateMany(Filters.and(Filters.exists(field), Filters.exists(alias.getValue())), Updates.unset(field));
+				unmigrated.add(Filters.exists(field));
+				rename.put(field, alias.getValue());
+			}
+			if (rename.isEmpty()) {
+				return 0;
+			}
+			long updated = table.updateMany(Filters.or(unmigrated), new Document("$rename", rename)).getModifiedCount();
+			logger.info("Migrated {} documents in table '{}' to field aliases.", updated, getTableNameForAppid(appid));
+			return updated;
+		} catch (Exception e) {
+			logger.error(null, e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Get the mongodb table requested. Collection handles are created once per app
+	 * and reused, with the configured codec registry, read preference and write concern.
 	 * @param appid name of the collection
 	 * @return a Mongo collection
 	 */
 	public static MongoCollection<Document> getTable(String appid) {
+		if (StringUtils.isBlank(appid)) {
+			return null;
+		}
+		MongoCollection<Document> table = TABLES.get(appid);
+		if (table != null) {
+			return table;
+		}
 		try {
-			return getClient().getCollection(getTableNameForAppid(appid));
+			table = newTable(appid);
+			MongoCollection<Document> existing = TABLES.putIfAbsent(appid, table);
+			return (existing == null) ? table : existing;
 		} catch (Exception e) {
 			logger.error(null, e);
 		}
 		return null;
 	}
 
+	/**
+	 * Removes the cached collection handle for a given app.
+	 * This should be called when an app is deleted.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 */
+	public static void evictTable(String appid) {
+		if (!StringUtils.isBlank(appid)) {
+			TABLES.remove(appid);
+			OPERATION_TABLES.remove(appid);
+			ASYNC_TABLES.remove(appid);
+			ROUTES.remove(appid);
+		}
+	}
+
+	/**
+	 * Get the mongodb table requested, configured for a specific kind of operation.
+	 * The read preference is set by {@code para.mongodb.read_preference_point|batch|page} and
+	 * the write concern by {@code para.mongodb.write_concern_single|bulk|import}. Both can be overridden
+	 * for each app, e.g. {@code para.mongodb.apps.{appid}.read_preference_page}.
+	 * @param appid name of the collection
+	 * @param op the kind of operation
+	 * @return a Mongo collection
+	 */
+	public static MongoCollection<Document> getTable(String appid, Operation op) {
+		if (StringUtils.isBlank(appid) || op == null) {
+			return getTable(appid);
+		}
+		Map<Operation, MongoCollection<Document>> tables = OPERATION_TABLES.get(appid);
+		MongoCollection<Document> table = (tables == null) ? null : tables.get(op);
+		if (table != null) {
+			return table;
+		}
+		table = getTable(appid);
+		if (table == null) {
+			return null;
+		}
+		try {
+			if (op.isRead()) {
+				ReadPreference readPreference = getReadPreference(appid, op.getConfigKey());
+				if (readPreference != null) {
+					table = table.withReadPreference(readPreference);
+				}
+			} else {
+				WriteConcern writeConcern = getWriteConcern(appid, op.getConfigKey());
+				if (writeConcern != null) {
+					table = table.withWriteConcern(writeConcern);
+				}
+			}
+			if (tables == null) {
+				tables = new ConcurrentHashMap<Operation, MongoCollection<Document>>();
+				Map<Operation, MongoCollection<Document>> existing = OPERATION_TABLES.putIfAbsent(appid, tables);
+				tables = (existing == null) ? tables : existing;
+			}
+			tables.put(op, table);
+		} catch (Exception e) {
+			logger.error(null, e);
+		}
+		return table;
+	}
+
+	/**
+	 * Get the mongodb table requested for the asynchronous (Reactive Streams) driver, configured for
+	 * a specific kind of operation. The same read preference and write concern settings apply as
+	 * for {@link #getTable(java.lang.String, com.erudika.para.persistence.MongoDBUtils.Operation)}.
+	 * @param appid name of the collection
+	 * @param op the kind of operation
+	 * @return a Mongo collection
+	 */
+	public static com.mongodb.reactivestreams.client.MongoCollection<Document> getAsyncTable(String appid, Operation op) {
+		if (StringUtils.isBlank(appid) || op == null) {
+			return null;
+		}
+		Map<Operation, com.mongodb.reactivestreams.client.MongoCollection<Document>> tables = ASYNC_TABLES.get(appid);
+		com.mongodb.reactivestreams.client.MongoCollection<Document> table = (tables == null) ? null : tables.get(op);
+		if (table != null) {
+			return table;
+		}
+		try {
+			table = getCluster(appid).getAsyncDatabase().getCollection(getTableNameForAppid(appid));
+			ReadPreference readPreference = op.isRead() ? getReadPreference(appid, op.getConfigKey()) : null;
+			if (readPreference == null) {
+				readPreference = getReadPreference(appid, "read_preference");
+			}
+			if (readPreference != null) {
+				table = table.withReadPreference(readPreference);
+			}
+			WriteConcern writeConcern = op.isRead() ? null : getWriteConcern(appid, op.getConfigKey());
+			if (writeConcern == null) {
+				writeConcern = getWriteConcern(appid, "write_concern");
+			}
+			if (writeConcern != null) {
+				table = table.withWriteConcern(writeConcern);
+			}
+			if (tables == null) {
+				tables = new ConcurrentHashMap<Operation, com.mongodb.reactivestreams.client.MongoCollection<Document>>();
+				Map<Operation, com.mongodb.reactivestreams.client.MongoCollection<Document>> existing =
+						ASYNC_TABLES.putIfAbsent(appid, tables);
+				tables = (existing == null) ? tables : existing;
+			}
+			tables.put(op, table);
+		} catch (Exception e) {
+			logger.error(null, e);
+		}
+		return table;
+	}
+
+	private static MongoCollection<Document> newTable(String appid) {
+		MongoDatabase db = getClient(appid);
+		MongoCollection<Document> table = db.getCollection(getTableNameForAppid(appid)).
+				withCodecRegistry(db.getCodecRegistry());
+		ReadPreference readPreference = getReadPreference(appid, "read_preference");
+		if (readPreference != null) {
+			table = table.withReadPreference(readPreference);
+		}
+		WriteConcern writeConcern = getWriteConcern(appid, "write_concern");
+		if (writeConcern != null) {
+			table = table.withWriteConcern(writeConcern);
+		}
+		return table;
+	}
+
+	private static WriteConcern getWriteConcern(String appid, String key) {
+		return parseWriteConcern(getAppParam(appid, key, ""));
+	}
+
+	/**
+	 * Parses a write concern. The value is either the name of a predefined write concern like "MAJORITY",
+	 * the number of nodes which must acknowledge the write, or a list of options like "w:majority, j:true, wtimeout:5000".
+	 * Invalid options are logged and ignored.
+	 * @param value the configured value
+	 * @return a write concern or null if not configured or invalid
+	 */
+	static WriteConcern parseWriteConcern(String value) {
+		if (StringUtils.isBlank(value)) {
+			return null;
+		}
+		String trimmed = value.trim();
+		if (!trimmed.contains(":")) {
+			WriteConcern wc = NumberUtils.isDigits(trimmed) ? withOption(WriteConcern.ACKNOWLEDGED, "w:" + trimmed) :
+					WriteConcern.valueOf(trimmed);
+			if (wc == null) {
+				logger.warn("Unknown MongoDB write concern '{}'.", value);
+			}
+			return wc;
+		}
+		WriteConcern wc = WriteConcern.ACKNOWLEDGED;
+		for (String option : StringUtils.split(trimmed, ", ")) {
+			WriteConcern withOption = withOption(wc, option);
+			if (withOption == null) {
+				logger.warn("Invalid MongoDB write concern option '{}' in '{}' - ignoring it.", option, value);
+			} else {
+				wc = withOption;
+			}
+		}
+		return wc;
+	}
+
+	private static WriteConcern withOption(WriteConcern wc, String option) {
+		String name = StringUtils.trimToEmpty(StringUtils.substringBefore(option, ":"));
+		String val = StringUtils.trimToEmpty(StringUtils.substringAfter(option, ":"));
+		try {
+			if ("w".equalsIgnoreCase(name) && NumberUtils.isDigits(val)) {
+				int w = NumberUtils.toInt(val, -1);
+				return (w < 0) ? null : wc.withW(w);
+			} else if ("w".equalsIgnoreCase(name) && !val.isEmpty() && !val.startsWith("-")) {
+				// "majority" or the name of a tag set
+				return wc.withW(val);
+			} else if ("j".equalsIgnoreCase(name) && ("true".equalsIgnoreCase(val) || "false".equalsIgnoreCase(val))) {
+				return wc.withJournal(Boolean.parseBoolean(val));
+			} else if ("wtimeout".equalsIgnoreCase(name) && NumberUtils.isDigits(val)) {
+				long timeout = NumberUtils.toLong(val, -1);
+				return (timeout < 0) ? null : wc.withWTimeout(timeout, TimeUnit.MILLISECONDS);
+			}
+		} catch (IllegalArgumentException e) {
+			logger.debug("Invalid write concern option: {}", e.getMessage());
+		}
+		return null;
+	}
+
+	private static ReadPreference getReadPreference(String appid, String key) {
+		String name = getAppParam(appid, key, "");
+		if (StringUtils.isBlank(name)) {
+			return null;
+		}
+		int maxStaleness = NumberUtils.toInt(getAppParam(appid, "max_staleness_sec", "0"));
+		if (maxStaleness > 0 && maxStaleness < MIN_STALENESS_SEC) {
+			// the driver would only reject this later, on the first read
+			if (INVALID_READ_SETTINGS.add(appid + ":max_staleness_sec:" + maxStaleness)) {
+				logger.error("Invalid para.mongodb.max_staleness_sec {} for app '{}' - it must be 0 or at least {} seconds. " +
+						"Reads are not limited by staleness.", maxStaleness, appid, MIN_STALENESS_SEC);
+			}
+			maxStaleness = 0;
+		}
+		return parseReadPreference(name, maxStaleness);
+	}
+
+	/**
+	 * Parses a read preference, like "secondaryPreferred". Unknown names are logged once and ignored.
+	 * @param name the name of the read preference
+	 * @param maxStaleness the max staleness in seconds, or 0 if reads are not limited by staleness
+	 * @return a read preference or null if not configured or invalid
+	 */
+	static ReadPreference parseReadPreference(String name, int maxStaleness) {
+		if (StringUtils.isBlank(name)) {
+			return null;
+		}
+		try {
+			if (maxStaleness > 0 && !"primary".equalsIgnoreCase(name.trim())) {
+				return ReadPreference.valueOf(name.trim(), Collections.<TagSet>emptyList(), maxStaleness, TimeUnit.SECONDS);
+			}
+			return ReadPreference.valueOf(name.trim());
+		} catch (IllegalArgumentException e) {
+			if (INVALID_READ_SETTINGS.add(name)) {
+				logger.warn("Unknown MongoDB read preference '{}' - reading from the primary.", name);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a config property for a specific app, falling back to the global value.
+	 * App-specific properties are in the form {@code para.mongodb.apps.{appid}.{key}}.
+	 * @param appid name of the {@link com.erudika.para.core.App}
+	 * @param key the key, without the "mongodb." prefix
+	 * @param defaultValue default value
+	 * @return the value
+	 */
+	static String getAppParam(String appid, String key, String defaultValue) {
+		String value = Config.getConfigParam("mongodb." + key, defaultValue);
+		return StringUtils.isBlank(appid) ? value : Config.getConfigParam("mongodb.apps." + appid + "." + key, value);
+	}
+
 	/**
 	 * Lists all table names for this account.
 	 * @return a list of MongoDB tables
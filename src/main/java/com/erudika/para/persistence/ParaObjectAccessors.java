@@ -0,0 +1,244 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.annotations.Stored;
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.core.utils.ParaObjectUtils;
+import com.erudika.para.utils.Utils;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.lang3.ClassUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads and writes the stored fields of Para objects through method handles which are looked up once per class,
+ * instead of walking the class with reflection on every call like {@link ParaObjectUtils} does.
+ * The results are the same as {@code ParaObjectUtils.getAnnotatedFields(so, filter, false)} and
+ * {@code ParaObjectUtils.setAnnotatedFields(data)}. Classes with Jackson-annotated fields, fields without
+ * public accessors and values which need type conversion are handed over to {@link ParaObjectUtils}.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class ParaObjectAccessors {
+
+	private static final Logger logger = LoggerFactory.getLogger(ParaObjectAccessors.class);
+	private static final Map<Class<?>, ParaObjectAccessors> PLANS = new ConcurrentHashMap<Class<?>, ParaObjectAccessors>();
+	private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+	private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+	private final boolean fallback;
+	private final MethodHandle constructor;
+	private final Accessor[] stored;
+	private final Map<Class<? extends Annotation>, Accessor[]> filtered;
+	private final Set<String> declaredFields;
+	private final Set<String> readableProperties;
+
+	private ParaObjectAccessors(Class<? extends ParaObject> clazz) {
+		MethodHandle ctor = null;
+		List<Accessor> accessors = new ArrayList<Accessor>();
+		Set<String> declared = new HashSet<String>();
+		Set<String> readable = new HashSet<String>();
+		boolean unsupported = false;
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Map<String, PropertyDescriptor> properties = new HashMap<String, PropertyDescriptor>();
+			for (PropertyDescriptor pd : Introspector.getBeanInfo(clazz).getPropertyDescriptors()) {
+				properties.put(pd.getName(), pd);
+				if (pd.getReadMethod() != null) {
+					readable.add(pd.getName());
+				}
+			}
+			for (Field field : Utils.getAllDeclaredFields(clazz)) {
+				declared.add(field.getName());
+				if (field.isAnnotationPresent(Stored.class)) {
+					PropertyDescriptor pd = properties.get(field.getName());
+					if (isJsonAnnotated(field) || pd == null || pd.getReadMethod() == null || pd.getWriteMethod() == null) {
+						unsupported = true;
+						break;
+					}
+					accessors.add(new Accessor(field, ClassUtils.primitiveToWrapper(pd.getPropertyType()),
+							lookup.unreflect(pd.getReadMethod()).asType(GETTER_TYPE),
+							lookup.unreflect(pd.getWriteMethod()).asType(SETTER_TYPE)));
+				}
+			}
+			ctor = lookup.findConstructor(clazz, MethodType.methodType(void.class)).asType(CONSTRUCTOR_TYPE);
+		} catch (Exception e) {
+			logger.debug("Field accessors for {} can't be precompiled - {}", clazz.getName(), e.getMessage());
+			unsupported = true;
+		}
+		this.fallback = unsupported;
+		this.constructor = ctor;
+		this.stored = accessors.toArray(new Accessor[0]);
+		this.filtered = new ConcurrentHashMap<Class<? extends Annotation>, Accessor[]>();
+		this.declaredFields = declared;
+		this.readableProperties = readable;
+	}
+
+	private static ParaObjectAccessors getPlan(Class<? extends ParaObject> clazz) {
+		ParaObjectAccessors plan = PLANS.get(clazz);
+		if (plan == null) {
+			plan = new ParaObjectAccessors(clazz);
+			PLANS.putIfAbsent(clazz, plan);
+		}
+		return plan;
+	}
+
+	private static boolean isJsonAnnotated(Field field) {
+		for (Annotation a : field.getAnnotations()) {
+			if (StringUtils.startsWithIgnoreCase(a.annotationType().getSimpleName(), "Json")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Accessor[] getAccessors(Class<? extends Annotation> filter) {
+		if (filter == null) {
+			return stored;
+		}
+		Accessor[] accessors = filtered.get(filter);
+		if (accessors == null) {
+			List<Accessor> list = new ArrayList<Accessor>(stored.length);
+			for (Accessor accessor : stored) {
+				if (!accessor.field.isAnnotationPresent(filter)) {
+					list.add(accessor);
+				}
+			}
+			accessors = list.toArray(new Accessor[0]);
+			filtered.put(filter, accessors);
+		}
+		return accessors;
+	}
+
+	/**
+	 * Returns the stored fields of an object, same as {@code ParaObjectUtils.getAnnotatedFields(so, filter, false)}.
+	 * @param <P> the object type
+	 * @param so an object
+	 * @param filter fields annotated with this annotation are skipped
+	 * @return a map of field names to values
+	 */
+	static <P extends ParaObject> Map<String, Object> getAnnotatedFields(P so, Class<? extends Annotation> filter) {
+		if (so == null) {
+			return new LinkedHashMap<String, Object>();
+		}
+		ParaObjectAccessors plan = getPlan(so.getClass());
+		if (plan.fallback) {
+			return ParaObjectUtils.getAnnotatedFields(so, filter, false);
+		}
+		Accessor[] accessors = plan.getAccessors(filter);
+		Map<String, Object> map = new LinkedHashMap<String, Object>(accessors.length * 2);
+		try {
+			for (Accessor accessor : accessors) {
+				map.put(accessor.name, (Object) accessor.getter.invokeExact((Object) so));
+			}
+		} catch (Throwable t) {
+			logger.error(null, t);
+		}
+		return map;
+	}
+
+	/**
+	 * Creates an object from a map of field values, same as {@code ParaObjectUtils.setAnnotatedFields(data)}.
+	 * The class of the object is determined by the "type" field.
+	 * @param <P> the object type
+	 * @param data a map of field names to values
+	 * @return a new object or null
+	 */
+	@SuppressWarnings("unchecked")
+	static <P extends ParaObject> P setAnnotatedFields(Map<String, Object> data) {
+		if (data == null || data.isEmpty()) {
+			return null;
+		}
+		Object type = data.get("type");
+		ParaObjectAccessors plan = getPlan(ParaObjectUtils.toClass(type instanceof String ? (String) type : null));
+		if (plan.fallback || !plan.canSetWithoutConversion(data)) {
+			return ParaObjectUtils.setAnnotatedFields(data);
+		}
+		try {
+			P so = (P) (Object) plan.constructor.invokeExact();
+			for (Accessor accessor : plan.stored) {
+				Object value = data.get(accessor.name);
+				if (value != null) {
+					accessor.setter.invokeExact((Object) so, value);
+				}
+			}
+			if (so instanceof Sysprop) {
+				for (Map.Entry<String, Object> entry : data.entrySet()) {
+					String name = entry.getKey();
+					if (!plan.declaredFields.contains(name) && !plan.readableProperties.contains(name)) {
+						if (entry.getValue() == null) {
+							((Sysprop) so).removeProperty(name);
+						} else {
+							((Sysprop) so).addProperty(name, entry.getValue());
+						}
+					}
+				}
+			}
+			return so;
+		} catch (Throwable t) {
+			logger.error(null, t);
+		}
+		return null;
+	}
+
+	private boolean canSetWithoutConversion(Map<String, Object> data) {
+		for (Accessor accessor : stored) {
+			Object value = data.get(accessor.name);
+			if (value != null && !accessor.type.isInstance(value)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A precompiled getter and setter pair for a stored field.
+	 */
+	private static final class Accessor {
+		private final Field field;
+		private final String name;
+		private final Class<?> type;
+		private final MethodHandle getter;
+		private final MethodHandle setter;
+
+		Accessor(Field field, Class<?> type, MethodHandle getter, MethodHandle setter) {
+			this.field = field;
+			this.name = field.getName();
+			this.type = type;
+			this.getter = getter;
+			this.setter = setter;
+		}
+	}
+}
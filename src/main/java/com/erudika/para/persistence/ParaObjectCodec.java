@@ -0,0 +1,185 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.utils.Config;
+import static com.erudika.para.persistence.MongoDBDAO.ID;
+import static com.erudika.para.persistence.MongoDBDAO.OBJECT_ID;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.BsonBinarySubType;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.BsonTypeCodecMap;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.Binary;
+
+/**
+ * A codec which writes the stored fields of a {@link ParaObject} straight to BSON and reads them back,
+ * without going through an intermediate {@link org.bson.Document}. Documents are encoded exactly like
+ * {@code MongoDBDAO.toRow()} does for new objects - "id" is stored as "_id", field names are sanitized,
+ * blank fields are skipped and a new "_ObjectId" is generated for pagination.
+ * Enabled with {@code para.mongodb.codec_enabled = true}.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+public final class ParaObjectCodec implements Codec<ParaObject> {
+
+	/**
+	 * True if objects are written and read with this codec.
+	 */
+	static final boolean ENABLED = Config.getConfigBoolean("mongodb.codec_enabled", false);
+
+	private final CodecRegistry registry;
+	private final BsonTypeCodecMap codecs;
+
+	/**
+	 * Default constructor.
+	 * @param registry the codec registry used for field values
+	 */
+	public ParaObjectCodec(CodecRegistry registry) {
+		this.registry = registry;
+		this.codecs = new BsonTypeCodecMap(new BsonTypeClassMap(), registry);
+	}
+
+	/**
+	 * Returns a codec registry which contains this codec, backed by the given registry.
+	 * @param defaults the registry for all other classes
+	 * @return a codec registry
+	 */
+	public static CodecRegistry getCodecRegistry(CodecRegistry defaults) {
+		return CodecRegistries.fromRegistries(CodecRegistries.fromProviders(new Provider()), defaults);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void encode(BsonWriter writer, ParaObject so, EncoderContext ctx) {
+		writer.writeStartDocument();
+		// field values will be stored as they are - object structure and types will be preserved
+		for (Entry<String, Object> entry : ParaObjectAccessors.getAnnotatedFields(so, null).entrySet()) {
+			Object value = entry.getValue();
+			if (isBlank(value)) {
+				continue;
+			}
+			// "id" in ParaObject is translated to "_ID" mongodb
+			if (entry.getKey().equals(Config._ID)) {
+				writer.writeString(ID, value.toString());
+			} else {
+				writer.writeName(FieldAliases.toStored(entry.getKey()));
+				if (value instanceof Map) {
+					Object stored = TypedFields.toStored(entry.getKey(), MongoDBDAO.sanitizeFields((Map<String, Object>) value));
+					value = CompressedFields.compress(so.getType(), (Map<String, Object>) stored);
+				} else {
+					value = TypedFields.toStored(entry.getKey(), value);
+				}
+				Codec<Object> codec = (Codec<Object>) registry.get(value.getClass());
+				ctx.encodeWithChildContext(codec, writer, value);
+			}
+		}
+		// we add the native MongoDB id which will later be used for pagination and sorting
+		writer.writeString(OBJECT_ID, MongoDBUtils.generateNewId());
+		writer.writeEndDocument();
+	}
+
+	@Override
+	public ParaObject decode(BsonReader reader, DecoderContext ctx) {
+		Map<String, Object> props = readFields(reader, ctx, true);
+		return props.isEmpty() ? null : ParaObjectAccessors.setAnnotatedFields(props);
+	}
+
+	@Override
+	public Class<ParaObject> getEncoderClass() {
+		return ParaObject.class;
+	}
+
+	private Map<String, Object> readFields(BsonReader reader, DecoderContext ctx, boolean topLevel) {
+		Map<String, Object> props = new HashMap<String, Object>();
+		reader.readStartDocument();
+		while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+			String name = reader.readName();
+			String field = topLevel ? FieldAliases.fromStored(name) : MongoDBDAO.desanitizeField(name);
+			// "_ID" mongodb is translated to "id" in ParaObject
+			if (topLevel && name.equals(ID)) {
+				props.put(Config._ID, readValue(reader, ctx));
+			} else if (topLevel && FieldAliases.isShadowed(props, name, field)) {
+				reader.skipValue();
+			} else if (reader.getCurrentBsonType() == BsonType.DOCUMENT) {
+				// with lazy reads, embedded documents are only decoded when they're used
+				props.put(field, LazyBsonMap.ENABLED ? LazyBsonMap.read(reader, registry) : readFields(reader, ctx, false));
+			} else {
+				Object value = readValue(reader, ctx);
+				if (CompressedFields.isCompressed(value)) {
+					value = CompressedFields.expand((Binary) value, registry);
+				} else if (topLevel) {
+					value = TypedFields.fromStored(field, value);
+				}
+				props.put(field, value);
+			}
+		}
+		reader.readEndDocument();
+		return props;
+	}
+
+	private Object readValue(BsonReader reader, DecoderContext ctx) {
+		BsonType type = reader.getCurrentBsonType();
+		if (type == BsonType.NULL) {
+			reader.readNull();
+			return null;
+		} else if (type == BsonType.BINARY && reader.peekBinarySize() == 16 &&
+				(reader.peekBinarySubType() == BsonBinarySubType.UUID_STANDARD.getValue() ||
+				reader.peekBinarySubType() == BsonBinarySubType.UUID_LEGACY.getValue())) {
+			// same as DocumentCodec
+			return ctx.decodeWithChildContext(registry.get(UUID.class), reader);
+		}
+		return ctx.decodeWithChildContext(codecs.get(type), reader);
+	}
+
+	private static boolean isBlank(Object value) {
+		if (value == null) {
+			return true;
+		} else if (value instanceof Map || value instanceof Collection || value instanceof Number || value instanceof Boolean) {
+			return false;
+		}
+		return StringUtils.isBlank(value.toString());
+	}
+
+	/**
+	 * Provides a {@link ParaObjectCodec} for {@link ParaObject} and all of its subclasses.
+	 */
+	static final class Provider implements CodecProvider {
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> Codec<T> get(Class<T> clazz, CodecRegistry registry) {
+			if (ParaObject.class.isAssignableFrom(clazz)) {
+				return (Codec<T>) new ParaObjectCodec(registry);
+			}
+			return null;
+		}
+	}
+}
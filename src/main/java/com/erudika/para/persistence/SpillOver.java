@@ -0,0 +1,275 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.Para;
+import com.erudika.para.utils.Config;
+import static com.erudika.para.persistence.MongoDBDAO.ID;
+import static com.erudika.para.persistence.MongoDBDAO.OBJECT_ID;
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves the large fields of oversized objects to GridFS, so that they don't hit the 16MB document limit
+ * and don't bloat the cache. When a document is at least {@code para.mongodb.spillover.min_size} bytes,
+ * its largest non-core fields are uploaded to a GridFS bucket, until the rest of the document is below that size.
+ * The stored document keeps the core fields and a {@code _spilled} map of field names to GridFS file ids.
+ * Spilled fields are downloaded in parallel and put back in place on read. Files are deleted when
+ * an object is overwritten or deleted. Only supported by {@link MongoDBDAO}.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class SpillOver {
+
+	private static final Logger logger = LoggerFactory.getLogger(SpillOver.class);
+	private static final int MIN_SIZE = Config.getConfigInt("mongodb.spillover.min_size", 0);
+	private static final String BUCKET = Config.getConfigParam("mongodb.spillover.bucket", "para_spillover");
+	private static final String VALUE = "v";
+
+	/**
+	 * The field which maps spilled field names to GridFS file ids.
+	 */
+	static final String SPILLED = "_spilled";
+
+	/**
+	 * True if oversized objects are spilled over to GridFS.
+	 */
+	static final boolean ENABLED = MIN_SIZE > 0;
+
+	private SpillOver() { }
+
+	private static GridFSBucket getBucket(String appid) {
+		return GridFSBuckets.create(MongoDBUtils.getClient(appid), BUCKET);
+	}
+
+	private static byte[] encode(Document doc) {
+		BasicOutputBuffer buffer = new BasicOutputBuffer();
+		try (BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+			new DocumentCodec(MongoClient.getDefaultCodecRegistry()).encode(writer, doc, EncoderContext.builder().build());
+		}
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Uploads the largest fields of a row to GridFS if the row is too large. The uploaded fields are
+	 * removed from the row and their file ids are added to the {@code _spilled} field.
+	 * @param appid the app name
+	 * @param id the object id
+	 * @param row a row, modified in place
+	 * @return the spilled field names and file ids, empty if the row is small enough
+	 */
+	static Document spill(String appid, String id, Document row) {
+		Document spilled = new Document();
+		if (!ENABLED || row == null) {
+			return spilled;
+		}
+		int size = encode(row).length;
+		if (size < MIN_SIZE) {
+			return spilled;
+		}
+		List<Entry<String, byte[]>> fields = new ArrayList<Entry<String, byte[]>>();
+		for (Entry<String, Object> entry : row.entrySet()) {
+			if (!isCoreField(entry.getKey()) && entry.getValue() != null) {
+				byte[] bytes = encode(new Document(VALUE, entry.getValue()));
+				fields.add(new AbstractMap.SimpleEntry<String, byte[]>(entry.getKey(), bytes));
+			}
+		}
+		fields.sort((a, b) -> Integer.compare(b.getValue().length, a.getValue().length));
+		GridFSBucket bucket = getBucket(appid);
+		for (Entry<String, byte[]> field : fields) {
+			if (size < MIN_SIZE) {
+				break;
+			}
+			String filename = MongoDBUtils.getTableNameForAppid(appid) + "/" + id + "/" + field.getKey();
+			spilled.put(field.getKey(), bucket.uploadFromStream(filename, new ByteArrayInputStream(field.getValue())));
+			row.remove(field.getKey());
+			size -= field.getValue().length;
+		}
+		row.put(SPILLED, spilled);
+		logger.debug("Object {} was spilled over to GridFS - fields: {}", id, spilled.keySet());
+		return spilled;
+	}
+
+	private static boolean isCoreField(String field) {
+		return ID.equals(field) || OBJECT_ID.equals(field) || SPILLED.equals(field) ||
+				MongoDBDAO.CORE_FIELDS.contains(FieldAliases.fromStored(field));
+	}
+
+	/**
+	 * Turns a row into an update, which also replaces or clears the spilled versions of the updated fields.
+	 * @param row a row, as returned by {@link #spill(java.lang.String, java.lang.String, org.bson.Document)}
+	 * @return an update with {@code $set} and {@code $unset}
+	 */
+	static Document toUpdate(Document row) {
+		Document set = new Document(row);
+		Document unset = new Document();
+		Object spilled = set.remove(SPILLED);
+		for (String field : row.keySet()) {
+			if (!isCoreField(field)) {
+				unset.put(SPILLED + "." + field, "");
+			}
+		}
+		if (spilled instanceof Document) {
+			for (Entry<String, Object> entry : ((Document) spilled).entrySet()) {
+				set.put(SPILLED + "." + entry.getKey(), entry.getValue());
+				// the field may have been stored in the document before
+				unset.put(entry.getKey(), "");
+			}
+		}
+		Document update = new Document("$set", set);
+		if (!unset.isEmpty()) {
+			update.put("$unset", unset);
+		}
+		return update;
+	}
+
+	/**
+	 * Downloads the spilled fields of rows, in parallel, and puts them back in place.
+	 * If any download fails, the whole read fails - a row with a missing field could be written back,
+	 * which would delete the field for good.
+	 * @param appid the app name
+	 * @param rows a list of rows, modified in place
+	 * @throws IllegalStateException if a spilled field can't be read
+	 */
+	static void reassemble(String appid, Collection<Document> rows) {
+		if (rows == null || rows.isEmpty()) {
+			return;
+		}
+		List<CompletableFuture<Void>> downloads = new ArrayList<CompletableFuture<Void>>();
+		GridFSBucket bucket = null;
+		for (Document row : rows) {
+			Object spilled = (row == null) ? null : row.remove(SPILLED);
+			if (!(spilled instanceof Document)) {
+				continue;
+			}
+			bucket = (bucket == null) ? getBucket(appid) : bucket;
+			for (Entry<String, Object> entry : ((Document) spilled).entrySet()) {
+				final GridFSBucket b = bucket;
+				downloads.add(CompletableFuture.runAsync(() -> {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					b.downloadToStream((ObjectId) entry.getValue(), out);
+					Document field = new DocumentCodec(MongoClient.getDefaultCodecRegistry()).
+							decode(new RawBsonDocument(out.toByteArray()).asBsonReader(), DecoderContext.builder().build());
+					synchronized (row) {
+						row.put(entry.getKey(), field.get(VALUE));
+					}
+				}, Para.getExecutorService()));
+			}
+		}
+		Throwable error = null;
+		int failed = 0;
+		for (CompletableFuture<Void> download : downloads) {
+			try {
+				download.join();
+			} catch (CompletionException e) {
+				error = (error == null) ? e.getCause() : error;
+				failed++;
+			}
+		}
+		if (error != null) {
+			throw new IllegalStateException("Failed to read " + failed + " of " + downloads.size() +
+					" fields spilled over to GridFS.", error);
+		}
+	}
+
+	/**
+	 * Returns the names of all fields written by a row, including the spilled ones.
+	 * @param row a row, as returned by {@link #spill(java.lang.String, java.lang.String, org.bson.Document)}
+	 * @return a set of field names
+	 */
+	static Set<String> getWrittenFields(Document row) {
+		Set<String> fields = new HashSet<String>(row.keySet());
+		Object spilled = row.get(SPILLED);
+		if (spilled instanceof Document) {
+			fields.addAll(((Document) spilled).keySet());
+		}
+		return fields;
+	}
+
+	/**
+	 * Finds the spilled fields of objects which are about to be overwritten or deleted.
+	 * @param table the table
+	 * @param ids object ids
+	 * @return a map of object ids to spilled field names and GridFS file ids, only for objects which have any
+	 */
+	static Map<String, Document> findSpilled(MongoCollection<Document> table, List<String> ids) {
+		if (!ENABLED || ids == null || ids.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<String, Document> spilled = new HashMap<String, Document>();
+		for (Document row : table.find(Filters.and(Filters.in(ID, ids), Filters.exists(SPILLED))).
+				projection(Projections.include(SPILLED))) {
+			if (row.get(SPILLED) instanceof Document) {
+				spilled.put(row.getString(ID), (Document) row.get(SPILLED));
+			}
+		}
+		return spilled;
+	}
+
+	/**
+	 * Deletes the GridFS files of fields which were overwritten or deleted.
+	 * @param appid the app name
+	 * @param before the spilled fields of each object before the write
+	 * @param written the fields written for each object, or null if the objects were replaced or deleted
+	 */
+	static void deleteFiles(String appid, Map<String, Document> before, Map<String, Set<String>> written) {
+		if (before == null || before.isEmpty()) {
+			return;
+		}
+		GridFSBucket bucket = getBucket(appid);
+		for (Entry<String, Document> object : before.entrySet()) {
+			Set<String> fields = (written == null) ? null : written.get(object.getKey());
+			for (Entry<String, Object> field : object.getValue().entrySet()) {
+				if ((written == null || (fields != null && fields.contains(field.getKey()))) && field.getValue() instanceof ObjectId) {
+					try {
+						bucket.delete((ObjectId) field.getValue());
+					} catch (Exception e) {
+						logger.warn("Failed to delete GridFS file {} - {}", field.getValue(), e.getMessage());
+					}
+				}
+			}
+		}
+	}
+}
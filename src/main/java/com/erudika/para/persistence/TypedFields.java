@@ -0,0 +1,211 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.utils.Config;
+import static com.erudika.para.persistence.MongoDBDAO.ID;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.Document;
+
+/**
+ * Typed storage - keeps the BSON types of stored values consistent across documents, so that they can be
+ * indexed and filtered by range efficiently. When enabled with {@code para.mongodb.typed_storage.enabled},
+ * whole numbers in the nested fields listed in {@code para.mongodb.typed_storage.numeric_fields}
+ * (e.g. {@code properties.price}) are always stored as Int64 and decimal numbers as Double. A map doesn't
+ * record the original type of its values, so these numbers are read back as Long or Double - all other
+ * values keep their type. Strings are never converted, even if they look like numbers. The fields in
+ * {@code para.mongodb.typed_storage.date_fields} can also be stored as BSON dates, with
+ * {@code para.mongodb.typed_storage.timestamps_as_dates}, and are read back as milliseconds.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class TypedFields {
+
+	/**
+	 * True if values are written with consistent types.
+	 */
+	static final boolean ENABLED = Config.getConfigBoolean("mongodb.typed_storage.enabled", false);
+
+	private static final boolean DATES = ENABLED && Config.getConfigBoolean("mongodb.typed_storage.timestamps_as_dates", false);
+	private static final Set<String> DATE_FIELDS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			StringUtils.split(Config.getConfigParam("mongodb.typed_storage.date_fields", "timestamp,updated"), ", "))));
+	// dot-separated paths to nested fields - everything under a path is widened
+	private static final Set<String> NUMERIC_FIELDS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+			StringUtils.split(Config.getConfigParam("mongodb.typed_storage.numeric_fields", ""), ", "))));
+	// the paths which lead to numeric fields, so that other maps aren't traversed
+	private static final Set<String> NUMERIC_PARENTS = getParents(NUMERIC_FIELDS);
+
+	private TypedFields() { }
+
+	/**
+	 * Converts a top-level field value to the type in which it is stored.
+	 * @param field the field name
+	 * @param value the value
+	 * @return the value to store
+	 */
+	static Object toStored(String field, Object value) {
+		if (!ENABLED || value == null) {
+			return value;
+		}
+		if (DATES && value instanceof Number && DATE_FIELDS.contains(field)) {
+			return new Date(((Number) value).longValue());
+		}
+		return normalize(field, value);
+	}
+
+	/**
+	 * Converts a stored top-level field value back to its original type.
+	 * This is done even if typed storage is disabled, so that migrated data can always be read.
+	 * @param field the field name
+	 * @param value the stored value
+	 * @return the value
+	 */
+	static Object fromStored(String field, Object value) {
+		if (value instanceof Date && DATE_FIELDS.contains(field)) {
+			return ((Date) value).getTime();
+		}
+		return value;
+	}
+
+	/**
+	 * Widens the numbers in the configured nested fields of a top-level field. Declared fields already have
+	 * a fixed type and are left as they are. Maps and lists are only copied if something in them changes.
+	 * @param path the name of a top-level field
+	 * @param value a value
+	 * @return the same value, or a copy with consistent numeric types
+	 */
+	@SuppressWarnings("unchecked")
+	static Object normalize(String path, Object value) {
+		if (NUMERIC_FIELDS.contains(path)) {
+			return normalizeAll(value);
+		} else if (NUMERIC_PARENTS.contains(path) && value instanceof Map) {
+			Map<String, Object> map = (Map<String, Object>) value;
+			Map<String, Object> copy = null;
+			for (Entry<String, Object> entry : map.entrySet()) {
+				String nestedPath = path + "." + entry.getKey();
+				Object nested = NUMERIC_FIELDS.contains(nestedPath) ? normalizeValue(entry.getValue()) :
+						normalize(nestedPath, entry.getValue());
+				copy = copyOnChange(map, copy, entry.getKey(), nested);
+			}
+			return (copy == null) ? map : copy;
+		}
+		return value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object normalizeAll(Object value) {
+		if (value instanceof Map) {
+			return normalizeMap((Map<String, Object>) value);
+		} else if (value instanceof List) {
+			return normalizeList((List<Object>) value);
+		}
+		return value;
+	}
+
+	private static Object normalizeValue(Object value) {
+		if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			return ((Number) value).longValue();
+		} else if (value instanceof Float) {
+			return ((Float) value).doubleValue();
+		}
+		return normalizeAll(value);
+	}
+
+	private static Map<String, Object> copyOnChange(Map<String, Object> map, Map<String, Object> copy, String key, Object value) {
+		Map<String, Object> result = copy;
+		if (result == null && value != map.get(key)) {
+			result = new HashMap<String, Object>(map);
+		}
+		if (result != null) {
+			result.put(key, value);
+		}
+		return result;
+	}
+
+	private static Map<String, Object> normalizeMap(Map<String, Object> map) {
+		Map<String, Object> copy = null;
+		for (Entry<String, Object> entry : map.entrySet()) {
+			copy = copyOnChange(map, copy, entry.getKey(), normalizeValue(entry.getValue()));
+		}
+		return (copy == null) ? map : copy;
+	}
+
+	private static List<Object> normalizeList(List<Object> list) {
+		List<Object> copy = null;
+		for (int i = 0; i < list.size(); i++) {
+			Object value = normalizeValue(list.get(i));
+			if (copy == null && value != list.get(i)) {
+				copy = new ArrayList<Object>(list);
+			}
+			if (copy != null) {
+				copy.set(i, value);
+			}
+		}
+		return (copy == null) ? list : copy;
+	}
+
+	/**
+	 * Returns the fields of a stored document which have to be rewritten in order to match the typed storage format.
+	 * @param row a stored document
+	 * @return a document with the new values for {@code $set}, empty if the document is up to date
+	 */
+	static Document getMigratedFields(Document row) {
+		Document changed = new Document();
+		for (Entry<String, Object> entry : row.entrySet()) {
+			String field = entry.getKey();
+			Object value = entry.getValue();
+			if (ID.equals(field) || value == null) {
+				continue;
+			}
+			Object migrated;
+			if (DATE_FIELDS.contains(FieldAliases.fromStored(field)) && (value instanceof Number || value instanceof Date)) {
+				// dates are converted in both directions, so that the setting can be turned off again
+				long millis = (value instanceof Date) ? ((Date) value).getTime() : ((Number) value).longValue();
+				Object target = DATES ? new Date(millis) : Long.valueOf(millis);
+				migrated = target.equals(value) ? value : target;
+			} else {
+				migrated = ENABLED ? normalize(FieldAliases.fromStored(field), value) : value;
+			}
+			if (migrated != value) {
+				changed.put(field, migrated);
+			}
+		}
+		return changed;
+	}
+
+	private static Set<String> getParents(Set<String> paths) {
+		Set<String> parents = new HashSet<String>();
+		for (String path : paths) {
+			String parent = path;
+			while (parent.contains(".")) {
+				parent = StringUtils.substringBeforeLast(parent, ".");
+				parents.add(parent);
+			}
+		}
+		return Collections.unmodifiableSet(parents);
+	}
+}
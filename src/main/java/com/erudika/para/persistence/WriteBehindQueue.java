@@ -0,0 +1,220 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.DestroyListener;
+import com.erudika.para.Para;
+import com.erudika.para.persistence.MongoDBUtils.Operation;
+import com.erudika.para.utils.Config;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.WriteModel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.bson.BsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A per-app queue of single-object writes, which are sent to MongoDB as ordered {@code bulkWrite} batches.
+ * A batch is flushed once it has {@code para.mongodb.write_behind.batch_size} writes or when the first write
+ * in it has waited for {@code para.mongodb.write_behind.linger_ms}. Each queue holds at most
+ * {@code para.mongodb.write_behind.queue_size} writes - when it's full, callers are blocked until there's room.
+ * Pending writes are flushed before the app's objects are read and before batch operations, so they are
+ * visible to readers in the same process. Not used when objects are spilled over to GridFS.
+ * @author Alex Bogdanovski [alex@erudika.com]
+ */
+final class WriteBehindQueue {
+
+	private static final Logger logger = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+	/**
+	 * True if the {@link com.erudika.para.persistence.DAO} write methods go through the queue.
+	 */
+	static final boolean ENABLED = Config.getConfigBoolean("mongodb.write_behind.enabled", false) && !SpillOver.ENABLED;
+
+	private static final int BATCH_SIZE = Math.max(1, Config.getConfigInt("mongodb.write_behind.batch_size", 500));
+	private static final int LINGER_MS = Math.max(0, Config.getConfigInt("mongodb.write_behind.linger_ms", 5));
+	private static final int QUEUE_SIZE = Math.max(BATCH_SIZE, Config.getConfigInt("mongodb.write_behind.queue_size", 10000));
+	private static final Map<String, WriteBehindQueue> QUEUES = new ConcurrentHashMap<String, WriteBehindQueue>();
+	private static final AtomicBoolean DESTROY_LISTENER_ADDED = new AtomicBoolean(false);
+
+	private final String appid;
+	private final BlockingQueue<Write> queue = new ArrayBlockingQueue<Write>(QUEUE_SIZE);
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private final AtomicBoolean flushing = new AtomicBoolean(false);
+	private final Object flushLock = new Object();
+
+	private WriteBehindQueue(String appid) {
+		this.appid = appid;
+	}
+
+	/**
+	 * Adds a write to the queue of an app. Blocks while the queue is full.
+	 * @param appid the app name
+	 * @param model the write
+	 * @return a future which completes when the write is acknowledged. It also completes normally if the write
+	 * was applied but its write concern wasn't satisfied - that error is only logged.
+	 */
+	static CompletableFuture<Void> submit(String appid, WriteModel<BsonDocument> model) {
+		if (DESTROY_LISTENER_ADDED.compareAndSet(false, true)) {
+			Para.addDestroyListener(new DestroyListener() {
+				public void onDestroy() {
+					flushAll();
+				}
+			});
+		}
+		return QUEUES.computeIfAbsent(appid, WriteBehindQueue::new).add(model);
+	}
+
+	/**
+	 * Writes all pending writes of an app, in the calling thread.
+	 * @param appid the app name
+	 */
+	static void flush(String appid) {
+		WriteBehindQueue q = (appid == null) ? null : QUEUES.get(appid);
+		if (q != null && !q.queue.isEmpty()) {
+			q.flush();
+		}
+	}
+
+	/**
+	 * Writes all pending writes of all apps, in the calling thread.
+	 */
+	static void flushAll() {
+		for (WriteBehindQueue q : QUEUES.values()) {
+			q.flush();
+		}
+	}
+
+	private CompletableFuture<Void> add(WriteModel<BsonDocument> model) {
+		Write write = new Write(model);
+		try {
+			queue.put(write);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			write.future.completeExceptionally(e);
+			return write.future;
+		}
+		try {
+			// a full batch is written right away, even if a delayed flush is already pending
+			if (queue.size() >= BATCH_SIZE || LINGER_MS == 0) {
+				if (flushing.compareAndSet(false, true)) {
+					Para.getExecutorService().execute(this::runNow);
+				}
+			} else if (scheduled.compareAndSet(false, true)) {
+				Para.getScheduledExecutorService().schedule(this::run, LINGER_MS, TimeUnit.MILLISECONDS);
+			}
+		} catch (Exception e) {
+			// the executors are shut down - write in the calling thread instead
+			flushing.set(false);
+			scheduled.set(false);
+			flush();
+		}
+		return write.future;
+	}
+
+	private void run() {
+		scheduled.set(false);
+		flush();
+	}
+
+	private void runNow() {
+		flushing.set(false);
+		flush();
+	}
+
+	private void flush() {
+		synchronized (flushLock) {
+			List<Write> batch = new ArrayList<Write>(BATCH_SIZE);
+			while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+				write(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	private void write(List<Write> batch) {
+		List<WriteModel<BsonDocument>> models = new ArrayList<WriteModel<BsonDocument>>(batch.size());
+		for (Write write : batch) {
+			models.add(write.model);
+		}
+		// writes to the same object must be applied in order, so the batch is ordered
+		int written = 0;
+		Exception error = null;
+		try {
+			MongoDBUtils.getTable(appid, Operation.WRITE).withDocumentClass(BsonDocument.class).
+					bulkWrite(models, new BulkWriteOptions().ordered(true));
+			written = batch.size();
+		} catch (MongoBulkWriteException e) {
+			written = countApplied(e, batch.size());
+			error = (written < batch.size()) ? e : null;
+			if (e.getWriteConcernError() != null) {
+				// the writes were applied, but may not have reached as many nodes as the write concern requires
+				logger.error("Wrote {} of {} queued objects in app '{}', but the write concern wasn't satisfied: {}",
+						written, batch.size(), appid, e.getWriteConcernError());
+			}
+		} catch (Exception e) {
+			error = e;
+		}
+		for (int i = 0; i < batch.size(); i++) {
+			if (i < written) {
+				batch.get(i).future.complete(null);
+			} else {
+				batch.get(i).future.completeExceptionally(error);
+			}
+		}
+		if (error != null) {
+			logger.error("Failed to write " + (batch.size() - written) + " of " + batch.size() +
+					" queued objects in app '" + appid + "'.", error);
+		} else {
+			logger.debug("Wrote {} queued objects in app '{}'.", batch.size(), appid);
+		}
+	}
+
+	/**
+	 * Counts the writes of an ordered batch which were applied, even though the batch failed.
+	 * @param e the error
+	 * @param batchSize the number of writes in the batch
+	 * @return the number of writes at the start of the batch which were applied
+	 */
+	static int countApplied(MongoBulkWriteException e, int batchSize) {
+		// everything before the first failed write was written, nothing after it was attempted.
+		// without any write errors, all writes were applied and only the write concern wasn't satisfied
+		return e.getWriteErrors().isEmpty() ? batchSize : e.getWriteErrors().get(0).getIndex();
+	}
+
+	/**
+	 * A queued write.
+	 */
+	private static final class Write {
+		private final WriteModel<BsonDocument> model;
+		private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+		Write(WriteModel<BsonDocument> model) {
+			this.model = model;
+		}
+	}
+}
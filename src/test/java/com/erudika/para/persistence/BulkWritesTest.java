@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.core.Sysprop;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for splitting bulk writes into chunks, and for reporting every object of a chunk which fails.
+ */
+public class BulkWritesTest {
+
+	private static List<Sysprop> getObjects(int count) {
+		List<Sysprop> objects = new ArrayList<Sysprop>(count);
+		for (int i = 0; i < count; i++) {
+			objects.add(new Sysprop("obj" + i));
+		}
+		return objects;
+	}
+
+	@Test
+	public void testForEachChunk() {
+		List<Sysprop> objects = getObjects(BulkWrites.CHUNK_SIZE * 2 + 1);
+		BulkWriteReport report = new BulkWriteReport();
+		BulkWrites.forEachChunk(objects, report, chunk -> {
+			assertTrue(chunk.size() <= BulkWrites.CHUNK_SIZE);
+			for (Sysprop so : chunk) {
+				report.addSucceeded(so.getId());
+			}
+		});
+		assertTrue(report.isSuccessful());
+		assertEquals(objects.size(), report.getSucceeded().size());
+		assertEquals(null, report.getError());
+	}
+
+	@Test
+	public void testForEachChunkWithFailingTask() {
+		List<Sysprop> objects = getObjects(BulkWrites.CHUNK_SIZE * 3);
+		String failing = objects.get(BulkWrites.CHUNK_SIZE + 1).getId();
+		BulkWriteReport report = new BulkWriteReport();
+		BulkWrites.forEachChunk(objects, report, chunk -> {
+			for (Sysprop so : chunk) {
+				if (so.getId().equals(failing)) {
+					throw new IllegalStateException("boom");
+				}
+				report.addSucceeded(so.getId());
+			}
+		});
+		assertFalse(report.isSuccessful());
+		assertNotNull(report.getError());
+		assertEquals("boom", report.getError().getMessage());
+		// every object in the failed chunk is reported, including those before the error
+		Map<String, String> failed = report.getFailed();
+		assertEquals(BulkWrites.CHUNK_SIZE, failed.size());
+		for (Sysprop so : objects.subList(BulkWrites.CHUNK_SIZE, BulkWrites.CHUNK_SIZE * 2)) {
+			assertEquals("boom", failed.get(so.getId()));
+			assertFalse(report.getSucceeded().contains(so.getId()));
+		}
+		assertEquals(BulkWrites.CHUNK_SIZE * 2, report.getSucceeded().size());
+	}
+
+	@Test
+	public void testForEachChunkEmpty() {
+		BulkWriteReport report = new BulkWriteReport();
+		BulkWrites.forEachChunk(new ArrayList<Sysprop>(), report, chunk -> {
+			throw new IllegalStateException("not called");
+		});
+		BulkWrites.forEachChunk(null, report, chunk -> {
+			throw new IllegalStateException("not called");
+		});
+		assertTrue(report.isSuccessful());
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.mongodb.MongoClient;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.lang3.StringUtils;
+import org.bson.BsonBinarySubType;
+import org.bson.RawBsonDocument;
+import org.bson.types.Binary;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests for compressing map fields, with a threshold of 200 bytes and one type
+ * whose maps are always compressed.
+ */
+public class CompressedFieldsTest {
+
+	private static final int MIN_SIZE = 200;
+	// the encoded size of {"s": "..."} is the length of the string plus 13 bytes
+	private static final int OVERHEAD = 13;
+
+	static {
+		System.setProperty("para.mongodb.compressed_fields.min_size", String.valueOf(MIN_SIZE));
+		System.setProperty("para.mongodb.compressed_fields.types", "bigtype");
+	}
+
+	private static Map<String, Object> stringMap(int length) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("s", StringUtils.repeat('x', length));
+		return map;
+	}
+
+	private static Map<String, Object> expand(Object compressed) {
+		return new HashMap<String, Object>(CompressedFields.expand((Binary) compressed, MongoClient.getDefaultCodecRegistry()));
+	}
+
+	@Test
+	public void testCompressAroundThreshold() {
+		assertTrue(CompressedFields.ENABLED);
+		Map<String, Object> below = stringMap(MIN_SIZE - OVERHEAD - 1);
+		Object stored = CompressedFields.compress("sometype", below);
+		assertTrue(stored instanceof RawBsonDocument);
+		assertEquals(MIN_SIZE - 1, ((RawBsonDocument) stored).getByteBuffer().remaining());
+		assertFalse(CompressedFields.isCompressed(stored));
+
+		Map<String, Object> at = stringMap(MIN_SIZE - OVERHEAD);
+		stored = CompressedFields.compress("sometype", at);
+		assertTrue(CompressedFields.isCompressed(stored));
+		assertTrue(((Binary) stored).getData().length < MIN_SIZE);
+		assertEquals(at, expand(stored));
+	}
+
+	@Test
+	public void testCompressConfiguredType() {
+		Map<String, Object> small = stringMap(1);
+		assertTrue(CompressedFields.isCompressed(CompressedFields.compress("bigtype", small)));
+		assertEquals(small, expand(CompressedFields.compress("bigtype", small)));
+		assertSame(null, CompressedFields.compress("bigtype", null));
+		Map<String, Object> empty = new HashMap<String, Object>();
+		assertSame(empty, CompressedFields.compress("bigtype", empty));
+	}
+
+	@Test
+	public void testRoundTrip() {
+		Map<String, Object> nested = new HashMap<String, Object>();
+		nested.put("n", 42L);
+		nested.put("list", Arrays.asList("a", "b"));
+		Map<String, Object> map = stringMap(MIN_SIZE);
+		map.put("num", 7);
+		map.put("flag", true);
+		map.put("nested", nested);
+		map.put(MongoDBDAO.sanitizeField("a.b"), "dotted");
+
+		Map<String, Object> expanded = expand(CompressedFields.compress("sometype", map));
+		// keys are desanitized on the way back
+		assertEquals("dotted", expanded.remove("a.b"));
+		map.remove(MongoDBDAO.sanitizeField("a.b"));
+		assertEquals(map, expanded);
+	}
+
+	@Test
+	public void testIsCompressed() {
+		assertFalse(CompressedFields.isCompressed(null));
+		assertFalse(CompressedFields.isCompressed("PZ"));
+		assertFalse(CompressedFields.isCompressed(new Binary(new byte[] {'P', 'Z', 1, 0, 0, 0, 0})));
+		assertFalse(CompressedFields.isCompressed(new Binary(BsonBinarySubType.USER_DEFINED, new byte[] {'P', 'Z'})));
+		assertFalse(CompressedFields.isCompressed(new Binary(BsonBinarySubType.USER_DEFINED, new byte[] {'X', 'Z', 1, 0, 0, 0, 0})));
+	}
+
+	@Test
+	public void testExpandCorruptValue() {
+		byte[] data = ((Binary) CompressedFields.compress("bigtype", stringMap(MIN_SIZE))).getData();
+		try {
+			expand(new Binary(BsonBinarySubType.USER_DEFINED, Arrays.copyOf(data, data.length / 2)));
+			fail("a truncated value should not be expanded");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("truncated or corrupt"));
+		}
+	}
+}
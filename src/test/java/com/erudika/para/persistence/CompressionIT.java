@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.utils.Utils;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.bson.Document;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the wire protocol compressors - none, zlib and snappy - by the bytes the server receives and sends
+ * and by the time it takes to write and read the same objects. Each compressor gets its own cluster, all of them
+ * connected to the embedded MongoDB server. Byte counts come from the server's {@code serverStatus} and include
+ * the traffic of the driver's monitoring threads, which is small next to the objects. The results are logged -
+ * the only thing checked is that compression, where the server supports it, sends fewer bytes.
+ */
+public class CompressionIT {
+
+	private static final Logger logger = LoggerFactory.getLogger(CompressionIT.class);
+
+	private static final String[] COMPRESSORS = {"none", "zlib", "snappy"};
+	private static final String TABLE = "para-compression-it";
+	private static final int OBJECTS = 500;
+	private static final int ROUNDS = 5;
+	private static final Map<String, MongoDBCluster> CLUSTERS = new LinkedHashMap<String, MongoDBCluster>();
+
+	@BeforeClass
+	public static void setUpClass() {
+		System.setProperty("para.mongodb.port", "37017");
+		System.setProperty("para.app_name", "para-test");
+		System.setProperty("para.cluster_name", "para-test");
+		for (String compressor : COMPRESSORS) {
+			System.setProperty("para.mongodb.clusters." + compressor + ".compressors", "none".equals(compressor) ? "" : compressor);
+			CLUSTERS.put(compressor, new MongoDBCluster(compressor));
+		}
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		for (MongoDBCluster cluster : CLUSTERS.values()) {
+			cluster.getDatabase().getCollection(TABLE).drop();
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void testCompressors() {
+		List<Document> rows = getRows();
+		Map<String, long[]> results = new LinkedHashMap<String, long[]>();
+		for (Entry<String, MongoDBCluster> entry : CLUSTERS.entrySet()) {
+			// one unmeasured round, so that all clients start with open connections and loaded classes
+			run(entry.getValue().getDatabase(), rows);
+			results.put(entry.getKey(), measure(entry.getValue().getDatabase(), rows));
+		}
+		long[] none = results.get("none");
+		for (Entry<String, long[]> result : results.entrySet()) {
+			long[] r = result.getValue();
+			boolean compressed = isCompressed(result.getKey());
+			logger.info("{}{}: {} bytes in ({}%), {} bytes out ({}%), {}ms per write, {}ms per read", result.getKey(),
+					compressed ? "" : " (not negotiated)", r[0], r[0] * 100 / none[0], r[1], r[1] * 100 / none[1],
+					r[2] / ROUNDS, r[3] / ROUNDS);
+			if (compressed) {
+				assertTrue(result.getKey() + " should send fewer bytes", r[0] < none[0] && r[1] < none[1]);
+			}
+		}
+	}
+
+	private static List<Document> getRows() {
+		List<Document> rows = new ArrayList<Document>(OBJECTS);
+		for (int i = 0; i < OBJECTS; i++) {
+			// typical objects - a few random ids next to text and repeated keys, which compress well
+			Sysprop so = new Sysprop(Utils.getNewId());
+			so.setType("question");
+			so.setName("Question " + i);
+			so.setCreatorid(Utils.getNewId());
+			so.setTimestamp(Utils.timestamp());
+			so.addProperty("title", "How do I compare the compressors supported by the MongoDB driver? #" + i);
+			so.addProperty("body", Utils.generateSecurityToken(16) + " " + new String(new char[40]).
+					replace("\0", "The quick brown fox jumps over the lazy dog. "));
+			so.addProperty("answers", i % 7);
+			rows.add(MongoDBDAO.toRow(so, null, false, true));
+		}
+		return rows;
+	}
+
+	private static long[] measure(MongoDatabase db, List<Document> rows) {
+		long[] before = getNetworkStats(db);
+		long[] times = new long[2];
+		for (int i = 0; i < ROUNDS; i++) {
+			long[] t = run(db, rows);
+			times[0] += t[0];
+			times[1] += t[1];
+		}
+		long[] after = getNetworkStats(db);
+		return new long[] {after[0] - before[0], after[1] - before[1], times[0], times[1]};
+	}
+
+	private static long[] run(MongoDatabase db, List<Document> rows) {
+		MongoCollection<Document> table = db.getCollection(TABLE);
+		table.drop();
+		long start = System.nanoTime();
+		table.insertMany(rows);
+		long written = System.nanoTime();
+		List<Document> read = table.find().into(new ArrayList<Document>(rows.size()));
+		long done = System.nanoTime();
+		assertEquals(rows.size(), read.size());
+		return new long[] {(written - start) / 1000000, (done - written) / 1000000};
+	}
+
+	private static long[] getNetworkStats(MongoDatabase db) {
+		Document network = (Document) db.runCommand(new Document("serverStatus", 1)).get("network");
+		return new long[] {((Number) network.get("bytesIn")).longValue(), ((Number) network.get("bytesOut")).longValue()};
+	}
+
+	private static boolean isCompressed(String compressor) {
+		if (CLUSTERS.get(compressor).getCompressors().isEmpty()) {
+			return false;
+		}
+		// snappy is supported since MongoDB 3.4 and zlib since 3.6
+		List<?> version = (List<?>) CLUSTERS.get(compressor).getDatabase().
+				runCommand(new Document("buildInfo", 1)).get("versionArray");
+		int major = ((Number) version.get(0)).intValue();
+		int minor = ((Number) version.get(1)).intValue();
+		int required = "zlib".equals(compressor) ? 6 : 4;
+		return major > 3 || (major == 3 && minor >= required);
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that apps are spread over all clusters, and that adding or removing a cluster
+ * only moves the apps which have to move.
+ */
+public class ConsistentHashRoutingStrategyTest {
+
+	private static final int APPS = 2000;
+
+	private static Map<String, String> routeAll(MongoDBRoutingStrategy strategy, List<String> clusters) {
+		Map<String, String> routes = new HashMap<String, String>(APPS);
+		for (int i = 0; i < APPS; i++) {
+			String appid = "app" + i;
+			routes.put(appid, strategy.route(appid, clusters));
+		}
+		return routes;
+	}
+
+	@Test
+	public void testRoute() {
+		MongoDBRoutingStrategy strategy = new ConsistentHashRoutingStrategy();
+		assertNull(strategy.route("app", null));
+		assertNull(strategy.route("app", new ArrayList<String>()));
+		assertEquals("c1", strategy.route("app", Arrays.asList("c1")));
+
+		List<String> clusters = Arrays.asList("c1", "c2", "c3");
+		Map<String, String> routes = routeAll(strategy, clusters);
+		// same result from a fresh instance and regardless of the order of clusters
+		assertEquals(routes, routeAll(new ConsistentHashRoutingStrategy(), Arrays.asList("c3", "c1", "c2")));
+		for (String cluster : clusters) {
+			int count = 0;
+			for (String routed : routes.values()) {
+				count += cluster.equals(routed) ? 1 : 0;
+			}
+			assertTrue(cluster + " got " + count + " apps", count > APPS / 6);
+		}
+	}
+
+	@Test
+	public void testAddingClusterOnlyMovesAppsToIt() {
+		MongoDBRoutingStrategy strategy = new ConsistentHashRoutingStrategy();
+		Map<String, String> before = routeAll(strategy, Arrays.asList("c1", "c2", "c3"));
+		Map<String, String> after = routeAll(strategy, Arrays.asList("c1", "c2", "c3", "c4"));
+		int moved = 0;
+		for (Map.Entry<String, String> entry : after.entrySet()) {
+			if (!entry.getValue().equals(before.get(entry.getKey()))) {
+				assertEquals("c4", entry.getValue());
+				moved++;
+			}
+		}
+		assertTrue("moved " + moved, moved > 0 && moved < APPS / 2);
+	}
+
+	@Test
+	public void testRemovingClusterOnlyMovesItsApps() {
+		MongoDBRoutingStrategy strategy = new ConsistentHashRoutingStrategy();
+		Map<String, String> before = routeAll(strategy, Arrays.asList("c1", "c2", "c3", "c4"));
+		Map<String, String> after = routeAll(strategy, Arrays.asList("c1", "c2", "c4"));
+		for (Map.Entry<String, String> entry : before.entrySet()) {
+			if ("c3".equals(entry.getValue())) {
+				assertTrue(!"c3".equals(after.get(entry.getKey())));
+			} else {
+				assertEquals(entry.getValue(), after.get(entry.getKey()));
+			}
+		}
+	}
+
+	@Test
+	public void testChangesToClusterListAreNoticed() {
+		MongoDBRoutingStrategy strategy = new ConsistentHashRoutingStrategy();
+		List<String> clusters = new ArrayList<String>(Arrays.asList("c1"));
+		assertEquals("c1", strategy.route("app", clusters));
+		// the same list instance, modified in place, must not reuse the old ring
+		clusters.set(0, "c2");
+		assertEquals("c2", strategy.route("app", clusters));
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.annotations.Locked;
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.utils.Config;
+import com.mongodb.MongoClient;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for snapshots and diffs of tracked objects, with delta updates enabled.
+ */
+public class DeltaUpdatesTest {
+
+	static {
+		System.setProperty("para.mongodb.delta_updates", "true");
+	}
+
+	private static Sysprop getObject() {
+		Sysprop so = new Sysprop("delta1");
+		so.setType("test");
+		so.setName("name");
+		so.setTags(Arrays.asList("a", "b"));
+		so.addProperty("title", "title");
+		so.addProperty("count", 1);
+		return so;
+	}
+
+	@Test
+	public void testDiff() {
+		assertTrue(DeltaUpdates.ENABLED);
+		Sysprop so = getObject();
+		// objects which weren't tracked are updated in full
+		assertNull(DeltaUpdates.diff(so, MongoDBDAO.toRow(so, Locked.class, true)));
+
+		so.setName("new name");
+		Document row = MongoDBDAO.toRow(so, Locked.class, true);
+		Set<String> removed = DeltaUpdates.diff(so, row);
+		assertNotNull(removed);
+		assertTrue(removed.isEmpty());
+		assertEquals(Collections.singleton(Config._NAME), row.keySet());
+
+		Document unchanged = MongoDBDAO.toRow(so, Locked.class, true);
+		assertTrue(DeltaUpdates.diff(so, unchanged).isEmpty());
+		assertTrue(unchanged.isEmpty());
+	}
+
+	@Test
+	public void testDiffReturnsUnsetFields() {
+		Sysprop so = getObject();
+		DeltaUpdates.track(so);
+		so.setTags(null);
+		so.addProperty("count", 2);
+		Document row = MongoDBDAO.toRow(so, Locked.class, true);
+		Set<String> removed = DeltaUpdates.diff(so, row);
+		assertEquals(Collections.singleton(Config._TAGS), removed);
+		assertTrue(row.containsKey("properties"));
+		assertFalse(row.containsKey(Config._NAME));
+
+		Document update = DeltaUpdates.addUnset(new Document("$set", row), removed);
+		assertEquals(new Document(Config._TAGS, ""), update.get("$unset"));
+	}
+
+	@Test
+	public void testUntrack() {
+		Sysprop so = getObject();
+		DeltaUpdates.track(so);
+		DeltaUpdates.untrack(so);
+		assertNull(DeltaUpdates.diff(so, MongoDBDAO.toRow(so, Locked.class, true)));
+	}
+
+	@Test
+	public void testFingerprint() {
+		Map<String, Object> map1 = new HashMap<String, Object>();
+		map1.put("a", 1);
+		map1.put("b", "x");
+		Map<String, Object> map2 = new HashMap<String, Object>();
+		map2.put("b", "x");
+		map2.put("a", 1);
+		assertEquals(DeltaUpdates.fingerprint(map1), DeltaUpdates.fingerprint(map2));
+		map2.put("a", 1L);
+		assertNotEquals(DeltaUpdates.fingerprint(map1), DeltaUpdates.fingerprint(map2));
+		assertNotEquals(DeltaUpdates.fingerprint(Arrays.asList(1, 2)), DeltaUpdates.fingerprint(Arrays.asList(2, 1)));
+	}
+
+	@Test
+	public void testFingerprintDoesntDecodeLazyMaps() {
+		RawBsonDocument raw = new RawBsonDocument(new Document("a", 1).append("b", new Document("c", "d")),
+				MongoClient.getDefaultCodecRegistry().get(Document.class));
+		LazyBsonMap map = new LazyBsonMap(raw, MongoClient.getDefaultCodecRegistry(), false);
+		long fingerprint = DeltaUpdates.fingerprint(map);
+		assertNotNull(map.getRawBytes());
+		assertEquals(fingerprint, DeltaUpdates.fingerprint(map));
+		// once decoded, the map may have changed, so it no longer matches its snapshot
+		assertEquals(1, map.get("a"));
+		assertNull(map.getRawBytes());
+		assertNotEquals(fingerprint, DeltaUpdates.fingerprint(map));
+	}
+}
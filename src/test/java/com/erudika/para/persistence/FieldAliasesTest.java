@@ -0,0 +1,235 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.utils.Config;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoNamespace;
+import com.mongodb.MongoSocketOpenException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.result.UpdateResult;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests for loading and saving the alias dictionary, using fake collections (one per cluster) in which
+ * another node can change the dictionary in the middle of a save.
+ */
+public class FieldAliasesTest {
+
+	/**
+	 * A collection holding only the dictionary. Another node can write a new version of it
+	 * right before each of the next few writes, so that the write runs into a conflict.
+	 */
+	private static final class FakeTable {
+		private Document stored;
+		private Document concurrent;
+		private int conflicts;
+		private int writes;
+		private boolean unreachable;
+
+		FakeTable(Document stored) {
+			this.stored = stored;
+		}
+
+		void changeBeforeNextWrites(Document dictionary, int times) {
+			this.concurrent = dictionary;
+			this.conflicts = times;
+		}
+
+		private void interfere() {
+			if (conflicts > 0) {
+				conflicts--;
+				int version = (stored == null) ? 0 : stored.getInteger("version");
+				stored = new Document(concurrent).append("version", version + 1);
+			}
+		}
+
+		private Object insertOne(Document doc) {
+			writes++;
+			interfere();
+			if (stored != null) {
+				throw new MongoWriteException(new WriteError(11000, "duplicate key", new BsonDocument()), new ServerAddress());
+			}
+			stored = doc;
+			return null;
+		}
+
+		private UpdateResult replaceOne(Bson filter, Document doc) {
+			writes++;
+			interfere();
+			int version = filter.toBsonDocument(Document.class, MongoClientSettings.getDefaultCodecRegistry()).
+					getInt32("version").getValue();
+			if (stored == null || stored.getInteger("version") != version) {
+				return UpdateResult.acknowledged(0, 0L, null);
+			}
+			stored = doc;
+			return UpdateResult.acknowledged(1, 1L, null);
+		}
+
+		@SuppressWarnings("unchecked")
+		MongoCollection<Document> asCollection() {
+			FindIterable<Document> found = (FindIterable<Document>) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] {FindIterable.class}, (proxy, method, args) -> {
+				if ("first".equals(method.getName())) {
+					if (unreachable) {
+						throw new MongoSocketOpenException("unreachable", new ServerAddress());
+					}
+					return (stored == null) ? null : new Document(stored);
+				}
+				throw new UnsupportedOperationException(method.getName());
+			});
+			return (MongoCollection<Document>) Proxy.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] {MongoCollection.class}, (proxy, method, args) -> {
+				if ("getNamespace".equals(method.getName())) {
+					return new MongoNamespace("para", "para_metadata");
+				} else if ("find".equals(method.getName())) {
+					return found;
+				} else if ("insertOne".equals(method.getName())) {
+					return insertOne((Document) args[0]);
+				} else if ("replaceOne".equals(method.getName())) {
+					return replaceOne((Bson) args[0], (Document) args[1]);
+				}
+				throw new UnsupportedOperationException(method.getName());
+			});
+		}
+	}
+
+	private static Map<String, String> load(FakeTable... tables) {
+		List<MongoCollection<Document>> collections = new ArrayList<MongoCollection<Document>>(tables.length);
+		for (FakeTable table : tables) {
+			collections.add(table.asCollection());
+		}
+		return FieldAliases.load(collections);
+	}
+
+	private static Document dictionary(Document aliases) {
+		return new Document(MongoDBDAO.ID, "field_aliases").append("aliases", aliases);
+	}
+
+	@Test
+	public void testLoadCreatesDictionary() {
+		FakeTable table = new FakeTable(null);
+		Map<String, String> aliases = load(table);
+		assertEquals("@t", aliases.get(Config._TIMESTAMP));
+		assertEquals("@pr", aliases.get("properties"));
+		assertEquals(1, (int) table.stored.getInteger("version"));
+		assertEquals(aliases.size(), ((Document) table.stored.get("aliases")).size());
+		// nothing to add the second time
+		load(table);
+		assertEquals(1, table.writes);
+	}
+
+	@Test
+	public void testLoadMergesConcurrentInsert() {
+		FakeTable table = new FakeTable(null);
+		table.changeBeforeNextWrites(dictionary(new Document("custom", "@x")), 1);
+		Map<String, String> aliases = load(table);
+		// the insert failed, so the other node's dictionary was merged and saved as the next version
+		assertEquals(2, table.writes);
+		assertEquals(2, (int) table.stored.getInteger("version"));
+		assertEquals("@x", aliases.get("custom"));
+		assertEquals("@t", aliases.get(Config._TIMESTAMP));
+		assertEquals("@x", ((Document) table.stored.get("aliases")).getString("custom"));
+	}
+
+	@Test
+	public void testLoadMergesConcurrentUpdate() {
+		FakeTable table = new FakeTable(dictionary(new Document(Config._TIMESTAMP, "@t")).append("version", 1));
+		// the other node gives an alias we'd use for another field to its own field
+		table.changeBeforeNextWrites(dictionary(new Document(Config._TIMESTAMP, "@t").append("nick", "@n")), 1);
+		Map<String, String> aliases = load(table);
+		assertEquals(2, table.writes);
+		assertEquals(3, (int) table.stored.getInteger("version"));
+		// aliases are never reassigned, so 'name' is stored without one
+		assertEquals("@n", aliases.get("nick"));
+		assertFalse(aliases.containsKey(Config._NAME));
+		assertNotNull(aliases.get(Config._UPDATED));
+	}
+
+	@Test
+	public void testLoadCopiesAliasesToAllClusters() {
+		FakeTable first = new FakeTable(dictionary(new Document(Config._TIMESTAMP, "@t")).append("version", 1));
+		FakeTable second = new FakeTable(dictionary(new Document("custom", "@x")).append("version", 4));
+		Map<String, String> aliases = load(first, second);
+		assertEquals("@x", aliases.get("custom"));
+		assertEquals("@t", aliases.get(Config._TIMESTAMP));
+		// each cluster has all the aliases, so its documents can be read without the other clusters
+		assertEquals(aliases, first.stored.get("aliases"));
+		assertEquals(aliases, second.stored.get("aliases"));
+		assertEquals(2, (int) first.stored.getInteger("version"));
+		assertEquals(5, (int) second.stored.getInteger("version"));
+	}
+
+	@Test
+	public void testLoadKeepsFirstClusterAliasOnConflict() {
+		FakeTable first = new FakeTable(dictionary(new Document("custom", "@x")).append("version", 1));
+		FakeTable second = new FakeTable(dictionary(new Document("other", "@x").append("custom", "@y")).append("version", 1));
+		Map<String, String> aliases = load(first, second);
+		assertEquals("@x", aliases.get("custom"));
+		assertNull(aliases.get("other"));
+		// stored aliases are never reassigned, not even in the other cluster
+		assertEquals("@y", ((Document) second.stored.get("aliases")).getString("custom"));
+		assertEquals("@x", ((Document) second.stored.get("aliases")).getString("other"));
+	}
+
+	@Test
+	public void testLoadSkipsUnreachableCluster() {
+		FakeTable first = new FakeTable(null);
+		FakeTable second = new FakeTable(null);
+		second.unreachable = true;
+		Map<String, String> aliases = load(first, second);
+		assertEquals("@t", aliases.get(Config._TIMESTAMP));
+		assertEquals(1, first.writes);
+		assertEquals(0, second.writes);
+		first.unreachable = true;
+		try {
+			load(first, second);
+			fail("the dictionary can't be loaded if no cluster can be reached");
+		} catch (MongoSocketOpenException e) {
+			assertEquals(1, first.writes);
+		}
+	}
+
+	@Test
+	public void testLoadGivesUpAfterRepeatedConflicts() {
+		FakeTable table = new FakeTable(null);
+		table.changeBeforeNextWrites(dictionary(new Document("custom", "@x")), Integer.MAX_VALUE);
+		try {
+			load(table);
+			fail("conflicts should not be retried forever");
+		} catch (IllegalStateException e) {
+			assertEquals(5, table.writes);
+		}
+	}
+}
@@ -80,23 +80,23 @@ public class MongoDBDAOIT extends DAOTest {
 	@Test
 	public void testFieldNameSanitization() {
 		MongoDBDAO d = ((MongoDBDAO) dao());
-		assertNull(d.sanitizeField(null));
-		assertTrue(d.sanitizeField("").isEmpty());
-		assertTrue(d.sanitizeField("   KEY").equals("   KEY"));
+		assertNull(MongoDBDAO.sanitizeField(null));
+		assertTrue(MongoDBDAO.sanitizeField("").isEmpty());
+		assertTrue(MongoDBDAO.sanitizeField("   KEY").equals("   KEY"));
 
-		assertEquals("$$test.key.test...", d.desanitizeField(d.sanitizeField("$$test.key.test...")));
+		assertEquals("$$test.key.test...", MongoDBDAO.desanitizeField(MongoDBDAO.sanitizeField("$$test.key.test...")));
 
-		assertEquals("Base64:test_key:JHRlc3Qua2V5", d.sanitizeField("$test.key"));
-		assertEquals("$test.key", d.desanitizeField(d.sanitizeField("$test.key")));
+		assertEquals("Base64:test_key:JHRlc3Qua2V5", MongoDBDAO.sanitizeField("$test.key"));
+		assertEquals("$test.key", MongoDBDAO.desanitizeField(MongoDBDAO.sanitizeField("$test.key")));
 
-		assertEquals("Base64:test_key:JCQkdGVzdC5rZXk=", d.sanitizeField("$$$test.key"));
-		assertEquals("$$$test.key", d.desanitizeField(d.sanitizeField("$$$test.key")));
+		assertEquals("Base64:test_key:JCQkdGVzdC5rZXk=", MongoDBDAO.sanitizeField("$$$test.key"));
+		assertEquals("$$$test.key", MongoDBDAO.desanitizeField(MongoDBDAO.sanitizeField("$$$test.key")));
 
-		assertEquals("Base64:test_key_two$:dGVzdC5rZXkudHdvJA==", d.sanitizeField("test.key.two$"));
-		assertEquals("test.key.two$", d.desanitizeField(d.sanitizeField("test.key.two$")));
+		assertEquals("Base64:test_key_two$:dGVzdC5rZXkudHdvJA==", MongoDBDAO.sanitizeField("test.key.two$"));
+		assertEquals("test.key.two$", MongoDBDAO.desanitizeField(MongoDBDAO.sanitizeField("test.key.two$")));
 
-		assertEquals("test-key", d.sanitizeField("test-key"));
-		assertEquals("test-key", d.desanitizeField(d.sanitizeField("test-key")));
+		assertEquals("test-key", MongoDBDAO.sanitizeField("test-key"));
+		assertEquals("test-key", MongoDBDAO.desanitizeField(MongoDBDAO.sanitizeField("test-key")));
 
 
 		Sysprop s1 = new Sysprop("dirty-fields");
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.core.Sysprop;
+import com.erudika.para.utils.Config;
+import com.mongodb.MongoClient;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.bson.BsonDocument;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for the parts of {@link MongoDBDAO} which don't need a running MongoDB server.
+ */
+public class MongoDBDAOTest {
+
+	static {
+		System.setProperty("para.mongodb.field_name_cache_size", "3");
+		System.setProperty("para.mongodb.readall_projection", "email, user:identifier|properties.title");
+	}
+
+	@Test
+	public void testSanitizeField() {
+		assertEquals("title", MongoDBDAO.sanitizeField("title"));
+		assertEquals(null, MongoDBDAO.sanitizeField(null));
+		String sanitized = MongoDBDAO.sanitizeField("$a.b");
+		assertFalse(sanitized.contains(".") || sanitized.startsWith("$"));
+		assertEquals("$a.b", MongoDBDAO.desanitizeField(sanitized));
+		assertEquals("Base64:nothing", MongoDBDAO.desanitizeField("Base64:nothing"));
+		assertEquals(null, MongoDBDAO.desanitizeField(null));
+	}
+
+	@Test
+	public void testSanitizedFieldsAreCached() {
+		String sanitized = MongoDBDAO.sanitizeField("cached.field");
+		assertSame(sanitized, MongoDBDAO.sanitizeField("cached.field"));
+		String decoded = MongoDBDAO.desanitizeField(sanitized);
+		assertSame(decoded, MongoDBDAO.desanitizeField(sanitized));
+		// the cache holds 3 names, so it starts over when a fourth one comes along
+		for (int i = 0; i < 3; i++) {
+			MongoDBDAO.sanitizeField("other.field" + i);
+		}
+		String again = MongoDBDAO.sanitizeField("cached.field");
+		assertEquals(sanitized, again);
+		assertNotSame(sanitized, again);
+	}
+
+	@Test
+	public void testRewriteFieldsKeepsUnchangedMaps() {
+		assertEquals(null, MongoDBDAO.sanitizeFields(null));
+		Map<String, Object> nested = new HashMap<String, Object>();
+		nested.put("c", 3);
+		Map<String, Object> row = new HashMap<String, Object>();
+		row.put("a", 1);
+		row.put("b", nested);
+		// nothing to rewrite, so no copies are made
+		assertSame(row, MongoDBDAO.sanitizeFields(row));
+		assertSame(row, MongoDBDAO.desanitizeFields(row));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testRewriteFieldsCopiesChangedMaps() {
+		Map<String, Object> unchanged = new HashMap<String, Object>();
+		unchanged.put("c", 3);
+		Map<String, Object> changed = new HashMap<String, Object>();
+		changed.put("x.y", 2);
+		changed.put("z", 4);
+		Map<String, Object> row = new HashMap<String, Object>();
+		row.put("a", 1);
+		row.put("b", unchanged);
+		row.put("nested", changed);
+
+		Map<String, Object> sanitized = MongoDBDAO.sanitizeFields(row);
+		assertNotSame(row, sanitized);
+		assertEquals(3, sanitized.size());
+		assertEquals(1, sanitized.get("a"));
+		assertSame(unchanged, sanitized.get("b"));
+		Map<String, Object> sanitizedNested = (Map<String, Object>) sanitized.get("nested");
+		assertEquals(2, sanitizedNested.get(MongoDBDAO.sanitizeField("x.y")));
+		assertEquals(4, sanitizedNested.get("z"));
+		// the original maps are left as they were
+		assertTrue(changed.containsKey("x.y"));
+		assertSame(changed, row.get("nested"));
+
+		assertEquals(row, MongoDBDAO.desanitizeFields(sanitized));
+	}
+
+	@Test
+	public void testProjectedFields() {
+		// a type prefix is ignored, since the projection is the same for all types
+		Set<String> expected = new LinkedHashSet<String>(MongoDBDAO.CORE_FIELDS);
+		expected.addAll(Arrays.asList("email", "identifier", "properties.title"));
+		assertEquals(expected, MongoDBDAO.PROJECTED_FIELDS);
+		assertNull(MongoDBDAO.getProjection(null));
+	}
+
+	@Test
+	public void testProjectionIncludesType() {
+		BsonDocument projection = MongoDBDAO.getProjection(Collections.singleton("properties.title")).
+				toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry());
+		assertTrue(projection.containsKey(FieldAliases.toStored(Config._TYPE)));
+		assertTrue(projection.containsKey(FieldAliases.toStoredPath("properties.title")));
+		assertEquals(2, projection.size());
+	}
+
+	@Test
+	public void testUpsertAllReportsFailedObjects() {
+		List<Sysprop> objects = new ArrayList<Sysprop>();
+		for (int i = 0; i < BulkWrites.CHUNK_SIZE + 10; i++) {
+			objects.add(new FailingSysprop("bad" + i));
+		}
+		BulkWriteReport report = new MongoDBDAO().upsertAll("para-test", objects);
+		// none of the objects reached the server, so none of them can be reported as written
+		assertFalse(report.isSuccessful());
+		assertTrue(report.getSucceeded().isEmpty());
+		assertEquals(objects.size(), report.getFailed().size());
+		assertEquals("bad object", report.getFailed().get("bad0"));
+		assertNotNull(report.getError());
+	}
+
+	/**
+	 * An object which can't be prepared for writing.
+	 */
+	private static class FailingSysprop extends Sysprop {
+		private static final long serialVersionUID = 1L;
+
+		FailingSysprop(String id) {
+			super(id);
+		}
+
+		@Override
+		public void setAppid(String appid) {
+			throw new IllegalArgumentException("bad object");
+		}
+	}
+}
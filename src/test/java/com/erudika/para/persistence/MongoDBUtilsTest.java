@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ * Tests for parsing the connection settings read by {@link MongoDBUtils}.
+ */
+public class MongoDBUtilsTest {
+
+	@Test
+	public void testParseWriteConcern() {
+		assertNull(MongoDBUtils.parseWriteConcern(null));
+		assertNull(MongoDBUtils.parseWriteConcern(" "));
+		assertEquals(WriteConcern.MAJORITY, MongoDBUtils.parseWriteConcern("MAJORITY"));
+		assertEquals(WriteConcern.W2, MongoDBUtils.parseWriteConcern("2"));
+		assertEquals(WriteConcern.MAJORITY.withJournal(true).withWTimeout(5000, TimeUnit.MILLISECONDS),
+				MongoDBUtils.parseWriteConcern("w:majority, j:true, wtimeout:5000"));
+		assertEquals(WriteConcern.ACKNOWLEDGED.withW("dc1"), MongoDBUtils.parseWriteConcern("w:dc1"));
+	}
+
+	@Test
+	public void testParseMalformedWriteConcern() {
+		assertNull(MongoDBUtils.parseWriteConcern("FOO"));
+		assertNull(MongoDBUtils.parseWriteConcern("99999999999"));
+		// invalid options are skipped, valid ones are still applied
+		assertEquals(WriteConcern.ACKNOWLEDGED.withJournal(true), MongoDBUtils.parseWriteConcern("w:-1, j:true"));
+		assertEquals(WriteConcern.ACKNOWLEDGED, MongoDBUtils.parseWriteConcern("w:, j:maybe, wtimeout:abc, foo:1"));
+		assertEquals(WriteConcern.ACKNOWLEDGED, MongoDBUtils.parseWriteConcern("wtimeout:99999999999"));
+		assertEquals(WriteConcern.ACKNOWLEDGED, MongoDBUtils.parseWriteConcern(":::"));
+	}
+
+	@Test
+	public void testParseReadPreference() {
+		assertNull(MongoDBUtils.parseReadPreference(null, 0));
+		assertNull(MongoDBUtils.parseReadPreference(" ", 0));
+		assertEquals(ReadPreference.secondaryPreferred(), MongoDBUtils.parseReadPreference("secondaryPreferred", 0));
+		assertEquals(ReadPreference.nearest(120, TimeUnit.SECONDS), MongoDBUtils.parseReadPreference(" nearest ", 120));
+		// max staleness doesn't apply to the primary
+		assertEquals(ReadPreference.primary(), MongoDBUtils.parseReadPreference("primary", 120));
+	}
+
+	@Test
+	public void testParseUnknownReadPreference() {
+		assertNull(MongoDBUtils.parseReadPreference("secondaryPrefered", 0));
+		assertNull(MongoDBUtils.parseReadPreference("secondaryPrefered", 0));
+		assertNull(MongoDBUtils.parseReadPreference("foo", 120));
+	}
+}
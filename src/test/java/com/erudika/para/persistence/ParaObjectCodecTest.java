@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.erudika.para.core.ParaObject;
+import com.erudika.para.core.Sysprop;
+import com.mongodb.MongoClient;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that {@link ParaObjectCodec} writes the same BSON as {@code MongoDBDAO.toRow()} and reads it back
+ * into the same object as {@code MongoDBDAO.documentToMap()}, so both paths can read each other's documents.
+ */
+public class ParaObjectCodecTest {
+
+	private static final CodecRegistry REGISTRY = ParaObjectCodec.getCodecRegistry(MongoClient.getDefaultCodecRegistry());
+
+	private static Sysprop getObject() {
+		Sysprop so = new Sysprop("codec-test");
+		so.setType("test");
+		so.setName("codec");
+		so.setTimestamp(1234567890123L);
+		so.setVotes(3);
+		so.setTags(Arrays.asList("a", "b"));
+		so.addProperty("title", "title");
+		so.addProperty("count", 5L);
+		so.addProperty("$this.is.a.test", Collections.singletonMap("a.b", "c"));
+		return so;
+	}
+
+	private static BsonDocument encode(ParaObject so) {
+		BsonDocument encoded = new BsonDocument();
+		REGISTRY.get(Sysprop.class).encode(new BsonDocumentWriter(encoded), (Sysprop) so, EncoderContext.builder().build());
+		return encoded;
+	}
+
+	private static ParaObject decode(BsonDocument doc) {
+		return REGISTRY.get(ParaObject.class).decode(new BsonDocumentReader(doc), DecoderContext.builder().build());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object toPlainMaps(Object value) {
+		if (!(value instanceof Map)) {
+			return value;
+		}
+		Map<String, Object> map = new HashMap<String, Object>();
+		for (Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+			map.put(entry.getKey(), toPlainMaps(entry.getValue()));
+		}
+		return map;
+	}
+
+	@Test
+	public void testEncodeMatchesToRow() {
+		Sysprop so = getObject();
+		BsonDocument encoded = encode(so);
+		BsonDocument expected = MongoDBDAO.toRow(so, null, false, true).toBsonDocument(BsonDocument.class, REGISTRY);
+		// a new pagination id is generated each time
+		assertTrue(encoded.isString(MongoDBDAO.OBJECT_ID));
+		encoded.remove(MongoDBDAO.OBJECT_ID);
+		expected.remove(MongoDBDAO.OBJECT_ID);
+		assertEquals(expected, encoded);
+		assertEquals(so.getId(), encoded.getString(MongoDBDAO.ID).getValue());
+		assertFalse(encoded.containsKey("id"));
+	}
+
+	@Test
+	public void testDecodeMatchesDocumentToMap() {
+		Sysprop so = getObject();
+		// a document written by toRow, as the driver would read it
+		BsonDocument stored = MongoDBDAO.toRow(so, null, false, true).toBsonDocument(BsonDocument.class, REGISTRY);
+		Document document = REGISTRY.get(Document.class).decode(new BsonDocumentReader(stored), DecoderContext.builder().build());
+		ParaObject expected = MongoDBDAO.fromRow(MongoDBDAO.documentToMap(document));
+		ParaObject decoded = decode(stored);
+
+		assertEquals(Sysprop.class, decoded.getClass());
+		assertEquals(toPlainMaps(ParaObjectAccessors.getAnnotatedFields(expected, null)),
+				toPlainMaps(ParaObjectAccessors.getAnnotatedFields(decoded, null)));
+		assertEquals(so.getTimestamp(), decoded.getTimestamp());
+		assertEquals(so.getTags(), decoded.getTags());
+	}
+
+	@Test
+	public void testRoundTrip() {
+		Sysprop so = getObject();
+		Sysprop decoded = (Sysprop) decode(encode(so));
+		// like with documentToMap(), the pagination id ends up in the properties of a Sysprop
+		assertTrue(decoded.hasProperty(MongoDBDAO.OBJECT_ID));
+		decoded.removeProperty(MongoDBDAO.OBJECT_ID);
+		assertEquals(toPlainMaps(ParaObjectAccessors.getAnnotatedFields(so, null)),
+				toPlainMaps(ParaObjectAccessors.getAnnotatedFields(decoded, null)));
+		assertNull(decode(new BsonDocument()));
+	}
+}
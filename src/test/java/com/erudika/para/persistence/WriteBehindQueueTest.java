@@ -0,0 +1,57 @@
+/*
+ * Copyright 2013-2019 Erudika. https://erudika.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * For issues and patches go to: https://github.com/erudika
+ */
+package com.erudika.para.persistence;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.WriteConcernError;
+import java.util.Collections;
+import java.util.List;
+import org.bson.BsonDocument;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests for telling apart the writes of a failed batch which were applied from the ones which weren't.
+ */
+public class WriteBehindQueueTest {
+
+	private static MongoBulkWriteException error(List<BulkWriteError> writeErrors, WriteConcernError writeConcernError) {
+		return new MongoBulkWriteException(BulkWriteResult.acknowledged(0, 0, 0, 0, null),
+				writeErrors, writeConcernError, new ServerAddress());
+	}
+
+	@Test
+	public void testCountApplied() {
+		BulkWriteError writeError = new BulkWriteError(11000, "duplicate key", new BsonDocument(), 3);
+		assertEquals(3, WriteBehindQueue.countApplied(error(Collections.singletonList(writeError), null), 10));
+		assertEquals(0, WriteBehindQueue.countApplied(error(Collections.singletonList(
+				new BulkWriteError(11000, "duplicate key", new BsonDocument(), 0)), null), 10));
+	}
+
+	@Test
+	public void testCountAppliedWithWriteConcernError() {
+		WriteConcernError wcError = new WriteConcernError(64, "waiting for replication timed out", new BsonDocument());
+		// the writes were applied, they just didn't reach enough nodes in time
+		assertEquals(10, WriteBehindQueue.countApplied(error(Collections.<BulkWriteError>emptyList(), wcError), 10));
+		BulkWriteError writeError = new BulkWriteError(11000, "duplicate key", new BsonDocument(), 4);
+		assertEquals(4, WriteBehindQueue.countApplied(error(Collections.singletonList(writeError), wcError), 10));
+	}
+}